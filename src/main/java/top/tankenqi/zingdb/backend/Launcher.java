@@ -39,12 +39,13 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap (page cache reads/writes through memory-mapped file)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         // 打开数据库
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"));
             return;
         }
         // 创建数据库
@@ -66,10 +67,10 @@ public class Launcher {
         log.info("database created.");
     }
 
-    private static void openDB(String path, long mem) {
-        log.info("opening database at {} (mem={} bytes)", path, mem);
+    private static void openDB(String path, long mem, boolean mmap) {
+        log.info("opening database at {} (mem={} bytes, mmap={})", path, mem, mmap);
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, mmap);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
@@ -1,7 +1,15 @@
 package top.tankenqi.zingdb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -9,111 +17,477 @@ import top.tankenqi.zingdb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 并发设计：
+ *   - 底层是 ConcurrentHashMap，命中路径上没有全局锁，只有一次 CAS 增加引用计数；
+ *   - 每个缓存项持有一个 CompletableFuture，第一个未命中的线程负责回源加载，
+ *     同一个 key 上并发未命中的其他线程直接等待这个 future，而不是 sleep 轮询；
+ *   - 引用计数放在缓存项自己的 AtomicInteger 中，负数表示该项正在被独占处理（如驱逐），
+ *     此时想获取它的线程会等待 exclusive future 完成后再重新查找。
+ *
+ * 驱逐策略分两种：
+ *   - 默认：引用计数归零立即写回并移除（DataItem / Entry 缓存依赖这种语义释放下层页面）；
+ *   - retainUnpinned：引用计数归零后仍然常驻，缓存满时按简化的 2Q 策略挑选牺牲者：
+ *     新加载的项先进入试用队列（FIFO），在试用期间再次被命中才晋升到保护区；
+ *     保护区用 CLOCK（带使用计数）管理，大小超过容量的 3/4 时把最冷的项降级回试用队列。
+ *     淘汰优先发生在试用队列，因此一次性的全表扫描不会把热点页挤出缓存；
+ *     所有项都被钉住时，未命中的线程最多等待 waitMillis 毫秒，仍无空位才抛出 CacheFullException。
+ *     子类可以用 reserveOffer / completeOffer 放入预读的资源，它们和新加载的项一样从试用队列开始，第一次访问不算命中次数。
  */
 public abstract class AbstractCache<T> {
+
+    private static final int EXCLUSIVE = -1;
+    private static final int MAX_USAGE = 5;
+    private static final long MAX_WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 缓存项：加载结果 + 引用计数
+     */
+    static final class CacheEntry<T> {
+        final long key;
+        final CompletableFuture<T> loaded = new CompletableFuture<>();
+        final AtomicInteger refs = new AtomicInteger(1);
+        volatile int usage; // 命中计数，仅 retainUnpinned 模式使用
+        volatile boolean hot; // 是否位于保护区
+        volatile boolean prefetched; // 由预读放入且尚未被访问过
+        /**
+         * 独占期间（refs < 0）其他线程在此等待；独占前先写入，再 CAS 引用计数，
+         * 所以看到 refs < 0 的线程一定能看到对应的 future
+         */
+        final AtomicReference<CompletableFuture<Void>> exclusive = new AtomicReference<>();
+
+        CacheEntry(long key) {
+            this.key = key;
+        }
+
+        /**
+         * 引用计数 >= 0 时加一并返回 true；处于独占状态时返回 false
+         */
+        boolean tryRetain() {
+            while (true) {
+                int r = refs.get();
+                if (r < 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 仅当没有任何引用时才能独占成功
+         */
+        boolean tryExclusive() {
+            CompletableFuture<Void> prev = exclusive.get();
+            if (prev != null && !prev.isDone()) {
+                return false; // 其他线程正在独占
+            }
+            CompletableFuture<Void> fut = new CompletableFuture<>();
+            if (!exclusive.compareAndSet(prev, fut)) {
+                return false;
+            }
+            if (refs.compareAndSet(0, EXCLUSIVE)) {
+                return true;
+            }
+            fut.complete(null);
+            return false;
+        }
+
+        void endExclusive() {
+            exclusive.get().complete(null);
+        }
+
+        void awaitExclusive() {
+            CompletableFuture<Void> fut = exclusive.get();
+            if (fut != null) {
+                fut.join();
+            }
+        }
+    }
+
     /**
      * 抽象层 AbstractCache 设计成用 long 作为通用键类型，
      * 方便被不同子类复用，子类中的key实际是int或者是long都没关系
      */
-    private HashMap<Long, T> cache;
-    private HashMap<Long, Integer> references; // 元素的引用个数
-    private HashMap<Long, Boolean> getting; // 正在获取某资源的线程
+    private final ConcurrentHashMap<Long, CacheEntry<T>> cache;
+
+    private final int maxResource; // 资源的最大数量，即可容纳资源T的最大数量
+    private final AtomicInteger count = new AtomicInteger(0);
 
-    private int maxResource; // 资源的最大数量，即可容纳资源T的最大数量
-    private int count = 0;
-    private Lock lock;
+    private final boolean retainUnpinned; // 引用归零后是否继续常驻
+    private final long waitMillis; // 缓存满且全部被钉住时，未命中最多等待的时间
+    private final ConcurrentLinkedQueue<CacheEntry<T>> probation; // 试用队列
+    private final ConcurrentLinkedQueue<CacheEntry<T>> hotRing; // 保护区的 CLOCK 环
+    private final AtomicInteger hotSize = new AtomicInteger(0);
+    private final Lock frameLock;
+    private final Condition frameFree;
+    private final AtomicInteger frameWaiters = new AtomicInteger(0);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
     public AbstractCache(int maxResource) {
+        this(maxResource, false, 0);
+    }
+
+    protected AbstractCache(int maxResource, boolean retainUnpinned, long waitMillis) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.cache = new ConcurrentHashMap<>();
+        this.retainUnpinned = retainUnpinned;
+        this.waitMillis = waitMillis;
+        this.probation = new ConcurrentLinkedQueue<>();
+        this.hotRing = new ConcurrentLinkedQueue<>();
+        this.frameLock = new ReentrantLock();
+        this.frameFree = frameLock.newCondition();
     }
 
     protected T get(long key) throws Exception {
         while (true) {
-            lock.lock();
-
-            /**
-             * 首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，
-             * 如果有，就过会再来看看
-             */
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            CacheEntry<T> entry = cache.get(key);
+            if (entry != null) {
+                if (!entry.tryRetain()) {
+                    // 该项正在被驱逐，等驱逐完成后重新查找
+                    entry.awaitExclusive();
                     continue;
                 }
-                continue;
+                // 资源在缓存中或正由其他线程加载，等待同一个 future 即可；
+                // 等待正在进行的加载也要付出一次回源的延迟，记为未命中
+                if (entry.loaded.isDone()) {
+                    hits.increment();
+                } else {
+                    misses.increment();
+                }
+                if (entry.prefetched) {
+                    // 预读进来的项第一次被访问相当于一次加载，不计入使用次数，保持扫描抗性
+                    entry.prefetched = false;
+                } else if (entry.usage < MAX_USAGE) {
+                    entry.usage++;
+                }
+                return await(entry);
             }
 
-            if (cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            // 资源不在缓存中，先预占一个名额，如果缓存已满，则抛出异常
+            if (!reserve(true)) {
+                throw Error.CacheFullException;
+            }
+            CacheEntry<T> fresh = new CacheEntry<>(key);
+            if (cache.putIfAbsent(key, fresh) != null) {
+                // 其他线程抢先放入了同一个 key，归还名额后重新查找
+                count.decrementAndGet();
+                continue;
             }
 
-            /**
-             * 资源不在缓存中，尝试获取该资源,
-             * 如果缓存已满，则抛出异常
-             */
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            T obj;
+            try {
+                // 在锁外进行可能非常耗时的回源操作
+                obj = getForCache(key);
+            } catch (Exception e) {
+                // 回源失败，将缓存项与名额还原，并唤醒同一个 key 上的等待者
+                cache.remove(key, fresh);
+                count.decrementAndGet();
+                fresh.loaded.completeExceptionally(e);
+                throw e;
             }
-            count++; // 在缓存未命中、准备回源加载前“预占一个名额”
-            getting.put(key, true);
-            lock.unlock();
-            break;
+            misses.increment();
+            fresh.loaded.complete(obj);
+            if (retainUnpinned) {
+                probation.offer(fresh);
+            }
+            return obj;
         }
+    }
 
-        T obj = null;
+    /**
+     * 等待加载完成；加载失败时把回源抛出的原始异常继续抛给调用方
+     */
+    private T await(CacheEntry<T> entry) throws Exception {
         try {
-            // 在锁外进行可能非常耗时的回源操作
-            obj = getForCache(key);
-        } catch (Exception e) {
-            // 回源失败，需要将count和getting状态还原
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            return entry.loaded.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
             throw e;
         }
+    }
 
-        // 回源成功，将资源放入缓存
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+    /**
+     * 预占一个名额；缓存已满时先尝试淘汰，
+     * wait 为 false 时淘汰不出空位就直接返回 false，不等待其他线程释放
+     */
+    private boolean reserve(boolean wait) throws InterruptedException {
+        if (maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        long deadline = 0;
+        while (true) {
+            int c = count.get();
+            if (c < maxResource) {
+                if (count.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if (!retainUnpinned) {
+                return false;
+            }
+            if (evictOne()) {
+                continue;
+            }
+            if (!wait) {
+                return false;
+            }
+            // 所有项都被钉住，等待某个引用归零
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            } else if (now >= deadline) {
+                return false;
+            }
+            awaitFrame(deadline - now);
+        }
+    }
 
-        return obj;
+    /**
+     * 挑选并驱逐一个未被钉住的项：
+     * 先把超额的保护区降级，再扫描试用队列，试用队列里没有可淘汰的项时才动保护区
+     */
+    private boolean evictOne() {
+        int maxHot = maxResource * 3 / 4;
+        int budget = (MAX_USAGE + 1) * Math.max(hotRing.size(), 1);
+        for (int i = 0; i < budget && hotSize.get() > maxHot; i++) {
+            CacheEntry<T> entry = pollHot();
+            if (entry == null) {
+                break;
+            }
+            if (entry.usage > 0) {
+                entry.usage--;
+                hotRing.offer(entry);
+            } else {
+                demote(entry);
+            }
+        }
+
+        int n = probation.size();
+        for (int i = 0; i < n; i++) {
+            CacheEntry<T> entry = probation.poll();
+            if (entry == null) {
+                break;
+            }
+            if (cache.get(entry.key) != entry) {
+                continue; // 已被移除的项，顺手从队列中摘掉
+            }
+            if (entry.usage > 0) {
+                // 试用期间被再次命中，晋升到保护区
+                entry.usage = 0;
+                entry.hot = true;
+                hotSize.incrementAndGet();
+                hotRing.offer(entry);
+                continue;
+            }
+            if (entry.refs.get() == 0 && entry.tryExclusive()) {
+                evict(entry.key, entry);
+                return true;
+            }
+            probation.offer(entry);
+        }
+
+        for (int i = 0; i < budget; i++) {
+            CacheEntry<T> entry = pollHot();
+            if (entry == null) {
+                return false;
+            }
+            if (entry.usage > 0) {
+                entry.usage--;
+                hotRing.offer(entry);
+                continue;
+            }
+            if (entry.refs.get() == 0 && entry.tryExclusive()) {
+                entry.hot = false;
+                hotSize.decrementAndGet();
+                evict(entry.key, entry);
+                return true;
+            }
+            hotRing.offer(entry);
+        }
+        return false;
+    }
+
+    /**
+     * 从保护区取出下一个仍然有效的项
+     */
+    private CacheEntry<T> pollHot() {
+        while (true) {
+            CacheEntry<T> entry = hotRing.poll();
+            if (entry == null) {
+                return null;
+            }
+            if (cache.get(entry.key) == entry) {
+                return entry;
+            }
+            hotSize.decrementAndGet();
+        }
+    }
+
+    private void demote(CacheEntry<T> entry) {
+        entry.hot = false;
+        hotSize.decrementAndGet();
+        probation.offer(entry);
+    }
+
+    private void awaitFrame(long nanos) throws InterruptedException {
+        frameLock.lock();
+        try {
+            frameWaiters.incrementAndGet();
+            // 分片等待，避免错过在扫描与等待之间发出的唤醒而白等到超时
+            frameFree.awaitNanos(Math.min(nanos, MAX_WAIT_SLICE_NANOS));
+        } finally {
+            frameWaiters.decrementAndGet();
+            frameLock.unlock();
+        }
+    }
+
+    private void signalFrame() {
+        if (frameWaiters.get() == 0) {
+            return;
+        }
+        frameLock.lock();
+        try {
+            frameFree.signalAll();
+        } finally {
+            frameLock.unlock();
+        }
     }
 
     /**
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        CacheEntry<T> entry = cache.get(key);
+        if (entry == null) {
+            return;
+        }
+        int ref = entry.refs.decrementAndGet();
+        if (ref != 0) {
+            return;
+        }
+        if (retainUnpinned) {
+            // 继续常驻，只需要唤醒等待空位的线程
+            signalFrame();
+        } else if (entry.tryExclusive()) {
+            evict(key, entry);
+        }
+    }
+
+    /**
+     * 丢弃一个未被引用的缓存项，不做写回（用于文件截断后清理越界的资源）
+     *
+     * @return 被丢弃的资源，资源不存在或正被引用时返回 null
+     */
+    protected T discard(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        if (entry == null || !entry.tryExclusive()) {
+            return null;
+        }
+        T obj = entry.loaded.join();
+        cache.remove(key, entry);
+        count.decrementAndGet();
+        entry.endExclusive();
+        return obj;
+    }
+
+    /**
+     * 预读第一步：在回源之前为 key 放入一个未被引用、正在加载的占位项，之后必须用 completeOffer 填入资源；
+     * 只用于 retainUnpinned 模式。占位期间其他线程的 get 等待这次加载而不会自己回源，
+     * 所以不会出现资源被加载、修改、驱逐写回之后，预读又把更早读到的旧内容放回缓存。
+     * 资源已在缓存中，或缓存已满且没有可淘汰的项时放弃，返回 false
+     */
+    protected boolean reserveOffer(long key) throws InterruptedException {
+        if (!retainUnpinned || cache.containsKey(key) || !reserve(false)) {
+            return false;
+        }
+        CacheEntry<T> entry = new CacheEntry<>(key);
+        entry.refs.set(0);
+        entry.prefetched = true;
+        if (cache.putIfAbsent(key, entry) != null) {
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 预读第二步：填入 reserveOffer 占位的资源，唤醒等待它的线程，放进试用队列等待第一次访问
+     */
+    protected void completeOffer(long key, T obj) {
+        CacheEntry<T> entry = cache.get(key);
+        entry.loaded.complete(obj);
+        probation.offer(entry);
+    }
+
+    /**
+     * key 是否在缓存中（包括正在加载的项）
+     */
+    protected boolean contains(long key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * 不增加引用计数地查看一个已加载的资源，不存在或尚未加载完成时返回 null
+     */
+    protected T peek(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        if (entry == null || !entry.loaded.isDone() || entry.loaded.isCompletedExceptionally()) {
+            return null;
+        }
+        return entry.loaded.join();
+    }
+
+    /**
+     * 独占一个未被引用的资源，期间其他线程的 get 会等待 unlockIdle；
+     * 资源正被引用或不在缓存中时返回 null
+     */
+    protected T tryLockIdle(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        if (entry == null || !entry.loaded.isDone() || entry.loaded.isCompletedExceptionally()) {
+            return null;
+        }
+        if (entry.refs.get() != 0 || !entry.tryExclusive()) {
+            return null;
+        }
+        return entry.loaded.join();
+    }
+
+    protected void unlockIdle(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        entry.refs.set(0);
+        entry.endExclusive();
+        signalFrame();
+    }
+
+    /**
+     * 当前缓存中所有资源的 key
+     */
+    protected Iterable<Long> cachedKeys() {
+        return cache.keySet();
+    }
+
+    /**
+     * 驱逐一个已经被独占的缓存项：先写回，再从 map 中移除，
+     * 最后唤醒等待者，保证等待者重新回源时读到的是写回后的数据
+     */
+    private void evict(long key, CacheEntry<T> entry) {
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
-            }
+            releaseForCache(entry.loaded.join());
         } finally {
-            lock.unlock();
+            cache.remove(key, entry);
+            count.decrementAndGet();
+            evictions.increment();
+            entry.endExclusive();
         }
     }
 
@@ -121,20 +495,30 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Map.Entry<Long, CacheEntry<T>> e : cache.entrySet()) {
+            CacheEntry<T> entry = e.getValue();
+            if (entry.refs.get() == EXCLUSIVE || !entry.loaded.isDone()
+                    || entry.loaded.isCompletedExceptionally()) {
+                continue;
             }
-        } finally {
-            lock.unlock();
+            releaseForCache(entry.loaded.join());
+            cache.remove(e.getKey(), entry);
+            count.decrementAndGet();
         }
     }
 
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
     /**
      * 当资源不在缓存时的获取行为
      */
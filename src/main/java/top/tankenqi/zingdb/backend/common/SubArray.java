@@ -1,32 +1,136 @@
-package top.tankenqi.zingdb.backend.common;
-
-/**
- * SubArray 是一个用于表示一个字节数组中的一部分的类
- * 因为java做不到数组的零拷贝，所以需要使用这个类来表示一个字节数组中的一部分
- * 下面是一个例子：
- * // 一个 8KB 的页包含多个数据项
- * byte[] pageData = new byte[8192]; // 页数据
- * 
- * // 数据项1：偏移 100-200
- * // 数据项2：偏移 200-350
- * // 数据项3：偏移 350-500
- * 
- * // 传统方式（会复制）：
- * byte[] dataItem1 = Arrays.copyOfRange(pageData, 100, 200); // 复制100字节
- * byte[] dataItem2 = Arrays.copyOfRange(pageData, 200, 350); // 复制150字节
- * 
- * // SubArray 方式（零拷贝）：
- * SubArray dataItem1 = new SubArray(pageData, 100, 200); // 只是记录范围
- * SubArray dataItem2 = new SubArray(pageData, 200, 350); // 只是记录范围
- */
-public class SubArray {
-    public byte[] raw;
-    public int start;
-    public int end;
-
-    public SubArray(byte[] raw, int start, int end) {
-        this.raw = raw;
-        this.start = start;
-        this.end = end;
-    }
-}
+package top.tankenqi.zingdb.backend.common;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * SubArray 表示一块页帧中的一段 [start, end)，用于在不拷贝的前提下访问页内的数据项
+ * 下面是一个例子：
+ * // 一个 8KB 的页包含多个数据项
+ * ByteBuffer page = pg.getBuffer(); // 页帧，可能是堆内数组，也可能是直接内存
+ *
+ * // 数据项1：偏移 100-200
+ * // 数据项2：偏移 200-350
+ *
+ * // 传统方式（会复制）：
+ * byte[] dataItem1 = Arrays.copyOfRange(pageData, 100, 200); // 复制100字节
+ *
+ * // SubArray 方式（零拷贝）：
+ * SubArray dataItem1 = new SubArray(page, 100, 200); // 只是记录范围
+ * long v = dataItem1.getLong(0);                    // 直接从页帧读取
+ *
+ * 所有读写方法的 off 都是相对 start 的偏移，且只使用 ByteBuffer 的绝对位置读写，
+ * 不改动共享的 position，多个 SubArray 可以安全地指向同一页帧
+ */
+public class SubArray {
+    public ByteBuffer buf;
+    public int start;
+    public int end;
+
+    public SubArray(byte[] raw, int start, int end) {
+        this(ByteBuffer.wrap(raw), start, end);
+    }
+
+    public SubArray(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public byte get(int off) {
+        return buf.get(start + off);
+    }
+
+    public void put(int off, byte b) {
+        buf.put(start + off, b);
+    }
+
+    public short getShort(int off) {
+        return buf.getShort(start + off);
+    }
+
+    public void putShort(int off, short v) {
+        buf.putShort(start + off, v);
+    }
+
+    public long getLong(int off) {
+        return buf.getLong(start + off);
+    }
+
+    public void putLong(int off, long v) {
+        buf.putLong(start + off, v);
+    }
+
+    /**
+     * 从 off 处读取 len 字节到 dst[dstOff..]
+     */
+    public void get(int off, byte[] dst, int dstOff, int len) {
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + start + off, dst, dstOff, len);
+            return;
+        }
+        ByteBuffer view = buf.duplicate();
+        ((Buffer) view).position(start + off);
+        view.get(dst, dstOff, len);
+    }
+
+    /**
+     * 把 src[srcOff..srcOff+len) 写入 off 处
+     */
+    public void put(int off, byte[] src, int srcOff, int len) {
+        if (buf.hasArray()) {
+            System.arraycopy(src, srcOff, buf.array(), buf.arrayOffset() + start + off, len);
+            return;
+        }
+        ByteBuffer view = buf.duplicate();
+        ((Buffer) view).position(start + off);
+        view.put(src, srcOff, len);
+    }
+
+    /**
+     * 在本段内把 [from, from+len) 移动到 to 处，允许重叠
+     */
+    public void move(int from, int to, int len) {
+        if (buf.hasArray()) {
+            int base = buf.arrayOffset() + start;
+            System.arraycopy(buf.array(), base + from, buf.array(), base + to, len);
+            return;
+        }
+        byte[] tmp = new byte[len];
+        get(from, tmp, 0, len);
+        put(to, tmp, 0, len);
+    }
+
+    /**
+     * 把本段 [off, off+len) 拷贝到 dst 的 dstOff 处
+     */
+    public void copyTo(int off, SubArray dst, int dstOff, int len) {
+        if (buf.hasArray()) {
+            dst.put(dstOff, buf.array(), buf.arrayOffset() + start + off, len);
+            return;
+        }
+        byte[] tmp = new byte[len];
+        get(off, tmp, 0, len);
+        dst.put(dstOff, tmp, 0, len);
+    }
+
+    /**
+     * 从 off 开始到段尾的子段，与本段共享页帧
+     */
+    public SubArray sub(int off) {
+        return new SubArray(buf, start + off, end);
+    }
+
+    /**
+     * 以拷贝的形式返回整段内容
+     */
+    public byte[] toBytes() {
+        byte[] data = new byte[length()];
+        get(0, data, 0, data.length);
+        return data;
+    }
+}
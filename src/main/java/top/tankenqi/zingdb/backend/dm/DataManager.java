@@ -1,39 +1,74 @@
-package top.tankenqi.zingdb.backend.dm;
-
-import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
-import top.tankenqi.zingdb.backend.dm.logger.Logger;
-import top.tankenqi.zingdb.backend.dm.page.PageOne;
-import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
-import top.tankenqi.zingdb.backend.tm.TransactionManager;
-
-public interface DataManager {
-    DataItem read(long uid) throws Exception;
-    long insert(long xid, byte[] data) throws Exception;
-    void close();
-
-    public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        dm.initPageOne(); // 初始化pageOne
-        return dm;
-    }
-
-    public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
-        Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if (!dm.loadCheckPageOne()) { // 检查pageOne是否正确
-            /**
-             * 如果不正确，说明上次数据库关闭时没有正常关闭，
-             * 数据没有正常落盘，需要从日志进行恢复
-             */
-            Recover.recover(tm, lg, pc);
-        }
-        dm.fillPageIndex();
-        PageOne.setVcOpen(dm.pageOne);
-        dm.pc.flushPage(dm.pageOne);
-
-        return dm;
-    }
-}
+package top.tankenqi.zingdb.backend.dm;
+
+import java.util.Collection;
+
+import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
+import top.tankenqi.zingdb.backend.dm.logger.Logger;
+import top.tankenqi.zingdb.backend.dm.page.PageOne;
+import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.dm.pageIndex.FreeSpaceMap;
+import top.tankenqi.zingdb.backend.tm.TransactionManager;
+
+public interface DataManager {
+    DataItem read(long uid) throws Exception;
+    long insert(long xid, byte[] data) throws Exception;
+
+    /**
+     * 提示即将依次读取这些 uid，把它们所在的页按页号合并成区间交给 PageCache 预读
+     */
+    void prefetch(Collection<Long> uids);
+
+    /**
+     * xid 使用异步提交：它的日志（包括提交日志）只写入日志缓冲、不等待落盘，
+     * 后台 flusher 很快会把它们写出，最迟在 committer 每隔 zingdb.commit.async.delay.ms 毫秒（默认 10）写提交状态时落盘。
+     * 崩溃时最多丢失这段时间内提交的事务，丢失的事务恢复时按未提交回滚
+     */
+    void asyncCommit(long xid);
+
+    /**
+     * 写 xid 的提交日志，返回时（异步提交的事务除外）日志已经落盘，提交以这条日志为准；
+     * XID 文件中的提交状态由 committer 稍后批量写入。没写过日志的事务不需要提交日志，直接返回
+     */
+    void logCommit(long xid);
+
+    void close();
+
+    public static DataManager create(String path, long mem, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, mem);
+        Logger lg = Logger.create(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, FreeSpaceMap.create(path));
+        dm.initPageOne(); // 初始化pageOne
+        dm.startWorkers();
+        return dm;
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, tm, false);
+    }
+
+    /**
+     * @param mmap 为 true 时页面缓存使用内存映射实现
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pc = PageCache.open(path, mem, mmap);
+        Logger lg = Logger.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, FreeSpaceMap.open(path));
+        if (!dm.loadCheckPageOne()) { // 检查pageOne是否正确
+            /**
+             * 如果不正确，说明上次数据库关闭时没有正常关闭，
+             * 数据没有正常落盘，需要从日志进行恢复
+             */
+            Recover.recover(tm, lg, pc);
+            // 恢复修改过的页没有 recLSN，先全部写回再做检查点
+            pc.flushDirtyPages(Long.MAX_VALUE);
+        }
+        // 正常关闭或恢复完成后所有页都已落盘，没有活跃事务，已有的日志对恢复不再有用
+        dm.checkpoint();
+        dm.fillPageIndex();
+        PageOne.setVcOpen(dm.pageOne);
+        dm.pc.flushPage(dm.pageOne);
+        dm.startWorkers();
+
+        return dm;
+    }
+}
@@ -1,193 +1,385 @@
-package top.tankenqi.zingdb.backend.dm;
-
-import top.tankenqi.zingdb.backend.common.AbstractCache;
-import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
-import top.tankenqi.zingdb.backend.dm.dataItem.DataItemImpl;
-import top.tankenqi.zingdb.backend.dm.logger.Logger;
-import top.tankenqi.zingdb.backend.dm.page.Page;
-import top.tankenqi.zingdb.backend.dm.page.PageOne;
-import top.tankenqi.zingdb.backend.dm.page.PageX;
-import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
-import top.tankenqi.zingdb.backend.dm.pageIndex.PageIndex;
-import top.tankenqi.zingdb.backend.dm.pageIndex.PageInfo;
-import top.tankenqi.zingdb.backend.tm.TransactionManager;
-import top.tankenqi.zingdb.backend.utils.Panic;
-import top.tankenqi.zingdb.backend.utils.Types;
-import top.tankenqi.zingdb.common.Error;
-
-public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
-
-    TransactionManager tm;
-    PageCache pc;
-    Logger logger;
-    PageIndex pIndex;
-    Page pageOne;
-
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
-        this.pc = pc;
-        this.logger = logger;
-        this.tm = tm;
-        this.pIndex = new PageIndex();
-    }
-
-    @Override
-    public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl) super.get(uid);
-        if (!di.isValid()) {
-            di.release();
-            return null;
-        }
-        return di;
-    }
-
-    /**
-     * 先尝试从 PageIndex 找能容纳数据的页
-     * 找不到就创建新页，并加入索引
-     * 插入数据后，重新计算该页剩余空间，更新索引
-     * 这样避免了遍历所有页来寻找合适空间，提高了插入效率
-     */
-    @Override
-    public long insert(long xid, byte[] data) throws Exception {
-        // 将原始数据包装成 DataItem 格式
-        byte[] raw = DataItem.wrapDataItemRaw(data);
-        // 检查数据是否超过单页最大容量（8KB - 2字节的 FSO 字段）
-        if (raw.length > PageX.MAX_FREE_SPACE) {
-            throw Error.DataTooLargeException;
-        }
-
-        // 从 PageIndex 找能容纳数据的现有页，最多尝试5次，避免并发竞争导致的失败
-        PageInfo pi = null;
-        for (int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                // 如果找不到能容纳数据的现有页，则创建新页，并加入索引
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-        if (pi == null) {
-            throw Error.DatabaseBusyException;
-        }
-
-        Page pg = null;
-        int freeSpace = 0;
-        try {
-            pg = pc.getPage(pi.pgno); // 从缓存获取页，并使得pg的引用+1
-            // 记录日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            // 插入数据
-            short offset = PageX.insert(pg, raw);
-
-            // pg 使用完毕，引用-1
-            pg.release();
-
-            // 将页号和偏移组合成 uid 返回给上层
-            return Types.addressToUid(pi.pgno, offset);
-
-        } finally {
-            // 无论插入成功与否，都要更新 PageIndex 中该页的空闲空间信息
-            if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
-            }
-        }
-    }
-
-    @Override
-    public void close() {
-        super.close();
-        logger.close();
-        // 不要忘了设置第一页的字节校验字段
-        PageOne.setVcClose(pageOne);
-        pageOne.release();
-        pc.close();
-    }
-
-    // 为xid生成update日志
-    public void logDataItem(long xid, DataItem di) {
-        byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
-    }
-
-    public void releaseDataItem(DataItem di) {
-        super.release(di.getUid());
-    }
-
-    /**
-     * DataManager 是 DM 层直接对外提供方法的类，同时，
-     * 也实现成 DataItem 对象的缓存。DataItem 存储的 key，
-     * 是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节
-     * 
-     * DataItem 缓存，getForCache()，只需要从 key 中解析出页号，
-     * 从 pageCache 中获取到页面，再根据偏移，解析出 DataItem 即可
-     */
-    @Override
-    protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int) (uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
-    }
-
-    /**
-     * 只需要将 DataItem 所在的页 release 即可
-     */
-    @Override
-    protected void releaseForCache(DataItem di) {
-        di.page().release();
-    }
-
-    // 在创建文件时初始化PageOne
-    void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
-        assert pgno == 1;
-        try {
-            pageOne = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        pc.flushPage(pageOne);
-    }
-
-    // 在打开已有文件时时读入PageOne，并验证正确性
-    boolean loadCheckPageOne() {
-        try {
-            pageOne = pc.getPage(1);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        return PageOne.checkVc(pageOne);
-    }
-
-    // 初始化 PageIndex，需要获取所有页面并填充 PageIndex
-    void fillPageIndex() {
-        // 这个pageNumber是打开的数据库文件的页面数量
-        int pageNumber = pc.getPageNumber();
-        // 从2开始，因为1是pageOne
-        for (int i = 2; i <= pageNumber; i++) {
-            Page pg = null;
-            try {
-                // 这里会使得pg的引用+1
-                pg = pc.getPage(i);
-            } catch (Exception e) {
-                Panic.panic(e);
-            }
-            // 这个pageNumber是页号，不是数据库文件的页面数量
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
-            /**
-             * 这里会使得pg的引用-1，
-             * 这里只是读取页的空闲空间信息，不需要长期持有，
-             * 所以用完就 release，让缓存能正常管理内存
-             */
-            pg.release();
-        }
-    }
-
-}
+package top.tankenqi.zingdb.backend.dm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.tankenqi.zingdb.backend.common.AbstractCache;
+import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
+import top.tankenqi.zingdb.backend.dm.dataItem.DataItemImpl;
+import top.tankenqi.zingdb.backend.dm.logger.Logger;
+import top.tankenqi.zingdb.backend.dm.page.Page;
+import top.tankenqi.zingdb.backend.dm.page.PageOne;
+import top.tankenqi.zingdb.backend.dm.page.PageX;
+import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.dm.pageIndex.FreeSpaceMap;
+import top.tankenqi.zingdb.backend.dm.pageIndex.PageIndex;
+import top.tankenqi.zingdb.backend.dm.pageIndex.PageInfo;
+import top.tankenqi.zingdb.backend.tm.TransactionManager;
+import top.tankenqi.zingdb.backend.utils.Panic;
+import top.tankenqi.zingdb.backend.utils.Props;
+import top.tankenqi.zingdb.backend.utils.Types;
+import top.tankenqi.zingdb.common.Error;
+
+/**
+ * 模糊检查点：后台 checkpointer 线程每隔 zingdb.dm.checkpoint.interval.ms 毫秒（默认 30000）做一次检查点，
+ *   1. 把上一个检查点之前就变脏、至今没写回的页写回，其余脏页照常交给页面缓存的 flusher，
+ *      然后 fsync 数据文件，此前淘汰时写回的页也一并落盘；
+ *   2. 记下当前日志结尾 begin，收集脏页表（pgno -> recLSN）与活跃事务表（xid -> 第一条日志的 LSN）；
+ *   3. 写一条带 begin 的检查点日志，再让 Logger 把恢复起点设为 begin、所有 recLSN、活跃事务第一条日志中的最小值。
+ * 写检查点日志之前把提交状态写入 XID 文件，并让 TransactionManager 冻结已经确定的事务状态（见 TransactionManager.freeze）。
+ * 写检查点期间插入与更新照常进行：修改页之前先按当前日志结尾标记 recLSN、登记事务，
+ * 没被这次检查点看到的修改，其日志一定在 begin 之后，恢复时不按脏页表过滤，总会重做。
+ */
+public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 30000L;
+    public static final long DEFAULT_ASYNC_COMMIT_DELAY_MS = 10L;
+
+    // 预读提示中两页之间相隔不超过这么多页时合并为一个区间，顺带读入中间的页比多发一次 I/O 划算
+    static final int PREFETCH_GAP = 4;
+    // 每新建这么多页把空闲空间表的脏块写回一次，限制异常退出后启动时需要读页确认的范围
+    static final int FSM_FLUSH_PAGES = 1024;
+
+    TransactionManager tm;
+    PageCache pc;
+    Logger logger;
+    PageIndex pIndex;
+    FreeSpaceMap fsm;
+    Page pageOne;
+    private final AtomicInteger newPages = new AtomicInteger(0); // 上次写回空闲空间表之后新建的页数
+
+    // 写过日志的事务 -> 它第一条日志的 LSN 下界；已结束的事务在检查点时清理
+    private final Map<Long, Long> activeXids = new ConcurrentHashMap<>();
+    private final Lock checkpointLock = new ReentrantLock();
+    private long lastCheckpoint; // 上一个检查点的 begin
+    private Thread checkpointer;
+    private volatile boolean closed;
+    // 异步提交的事务，见 asyncCommit
+    private final Set<Long> asyncXids = ConcurrentHashMap.newKeySet();
+    private Thread committer;
+    // 插入的数据不少于这么多字节时压缩插入日志，0 表示不压缩
+    private final int compressBytes = (int) Math.min(Integer.MAX_VALUE, Props.readLong("zingdb.log.compress.bytes", 0L));
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+        this(pc, logger, tm, FreeSpaceMap.inMemory());
+    }
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
+        super(0);
+        this.pc = pc;
+        this.logger = logger;
+        this.tm = tm;
+        this.fsm = fsm;
+        this.pIndex = new PageIndex(fsm);
+        pc.setLogFence(logger::flush);
+    }
+
+    @Override
+    public DataItem read(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl) super.get(uid);
+        if (!di.isValid()) {
+            di.release();
+            return null;
+        }
+        return di;
+    }
+
+    /**
+     * 先尝试从 PageIndex 找能容纳数据的页
+     * 找不到就创建新页，并加入索引
+     * 插入数据后，重新计算该页剩余空间，更新索引
+     * 这样避免了遍历所有页来寻找合适空间，提高了插入效率
+     */
+    @Override
+    public long insert(long xid, byte[] data) throws Exception {
+        // 将原始数据包装成 DataItem 格式
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        // 检查数据是否超过单页最大容量（8KB - 2字节的 FSO 字段）
+        if (raw.length > PageX.MAX_FREE_SPACE) {
+            throw Error.DataTooLargeException;
+        }
+
+        while (true) {
+            PageInfo pi = selectPage(raw.length);
+            Page pg = null;
+            int freeSpace = 0;
+            try {
+                pg = pc.getPage(pi.pgno); // 从缓存获取页，并使得pg的引用+1
+                if (PageX.getFreeSpace(pg) < raw.length) {
+                    // 空闲空间表的记录偏大（上次异常退出前没来得及写回），以页面为准，纠正后换一页
+                    continue;
+                }
+                // 记录日志
+                byte[] log = Recover.insertLog(xid, pg, raw, compressBytes);
+                writeLog(xid, pg, log);
+
+                // 插入数据
+                short offset = PageX.insert(pg, raw);
+
+                // 将页号和偏移组合成 uid 返回给上层
+                return Types.addressToUid(pi.pgno, offset);
+
+            } finally {
+                // 无论插入成功与否，都要更新 PageIndex 中该页的空闲空间信息
+                // 空闲空间必须在释放前读取：释放后页帧可能被淘汰并复用
+                if (pg != null) {
+                    freeSpace = PageX.getFreeSpace(pg);
+                    // pg 使用完毕，引用-1
+                    pg.release();
+                }
+                pIndex.add(pi.pgno, freeSpace);
+            }
+        }
+    }
+
+    /**
+     * 从 PageIndex 认领一个能容纳数据的现有页；没有时新建一页直接归自己使用，
+     * 新页不先放进 PageIndex，不会被其他线程抢走，所以并发插入不会因为竞争而失败
+     */
+    private PageInfo selectPage(int size) {
+        PageInfo pi = pIndex.select(size);
+        if (pi != null) {
+            return pi;
+        }
+        int newPgno = pc.newPage(PageX.initRaw());
+        if (newPages.incrementAndGet() >= FSM_FLUSH_PAGES) {
+            newPages.set(0);
+            fsm.flush();
+        }
+        return new PageInfo(newPgno, PageX.MAX_FREE_SPACE);
+    }
+
+    /**
+     * 写修改 pg 的日志：先标记页的 recLSN、登记事务的第一条日志，
+     * 异步提交的事务只把日志写入日志缓冲，其余事务等日志落盘
+     */
+    private void writeLog(long xid, Page pg, byte[] log) {
+        long lsn = logger.end();
+        pg.markRecLsn(lsn);
+        activeXids.putIfAbsent(xid, lsn);
+        if (asyncXids.contains(xid)) {
+            logger.logAsync(log);
+        } else {
+            logger.log(log);
+        }
+    }
+
+    @Override
+    public void asyncCommit(long xid) {
+        asyncXids.add(xid);
+    }
+
+    @Override
+    public void logCommit(long xid) {
+        boolean async = asyncXids.remove(xid);
+        if (!activeXids.containsKey(xid)) {
+            return;
+        }
+        byte[] log = Recover.commitLog(xid);
+        if (async) {
+            logger.logAsync(log);
+        } else {
+            logger.log(log);
+        }
+    }
+
+    /**
+     * 启动后台 checkpointer 与 committer，由 DataManager.create / open 在初始化完成后调用
+     */
+    void startWorkers() {
+        long delay = Math.max(1L, Props.readLong("zingdb.commit.async.delay.ms", DEFAULT_ASYNC_COMMIT_DELAY_MS));
+        committer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                tm.flushCommits(logger::flush);
+            }
+        }, "zingdb-dm-committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        long interval = Math.max(1L, Props.readLong("zingdb.dm.checkpoint.interval.ms", DEFAULT_CHECKPOINT_INTERVAL_MS));
+        checkpointer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (!closed) {
+                    checkpoint();
+                }
+            }
+        }, "zingdb-dm-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * 做一次模糊检查点，见类注释
+     */
+    void checkpoint() {
+        checkpointLock.lock();
+        try {
+            asyncXids.removeIf(xid -> !tm.isActive(xid));
+            pc.flushDirtyPages(lastCheckpoint);
+            // 淘汰与 flusher 写回的页都不 fsync，检查点之后恢复起点前移，必须先让它们落盘
+            pc.sync();
+            long begin = logger.end();
+            Map<Integer, Long> dirtyPages = pc.dirtyPageTable();
+            // 修改了还没写日志的页，日志在 begin 之后
+            dirtyPages.replaceAll((pgno, lsn) -> lsn == 0 ? begin : lsn);
+            Map<Long, Long> active = new HashMap<>();
+            for (Map.Entry<Long, Long> e : activeXids.entrySet()) {
+                if (tm.isActive(e.getKey())) {
+                    active.put(e.getKey(), e.getValue());
+                } else {
+                    activeXids.remove(e.getKey(), e.getValue());
+                }
+            }
+            // 去掉的事务中，提交日志可能在恢复起点之前，恢复时读不到，先把它们的提交状态写入 XID 文件
+            tm.flushCommits(logger::flush);
+            // 提交状态都已写入，顺便推进 XID 文件的冻结线
+            tm.freeze();
+            long redoLsn = begin;
+            for (long lsn : dirtyPages.values()) {
+                redoLsn = Math.min(redoLsn, lsn);
+            }
+            for (long lsn : active.values()) {
+                redoLsn = Math.min(redoLsn, lsn);
+            }
+            logger.log(Recover.checkpointLog(redoLsn, begin, pc.getPageNumber(), active, dirtyPages));
+            logger.checkpoint(redoLsn);
+            lastCheckpoint = begin;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread t : new Thread[] { checkpointer, committer }) {
+            if (t != null) {
+                t.interrupt();
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        }
+        tm.flushCommits(logger::flush);
+        super.close();
+        logger.close();
+        fsm.close();
+        // 不要忘了设置第一页的字节校验字段
+        PageOne.setVcClose(pageOne);
+        pageOne.release();
+        pc.close();
+    }
+
+    // 为xid生成update日志
+    public void logDataItem(long xid, DataItem di) {
+        byte[] log = Recover.updateLog(xid, di);
+        writeLog(xid, di.page(), log);
+    }
+
+    public void releaseDataItem(DataItem di) {
+        super.release(di.getUid());
+    }
+
+    /**
+     * DataManager 是 DM 层直接对外提供方法的类，同时，
+     * 也实现成 DataItem 对象的缓存。DataItem 存储的 key，
+     * 是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节
+     * 
+     * DataItem 缓存，getForCache()，只需要从 key 中解析出页号，
+     * 从 pageCache 中获取到页面，再根据偏移，解析出 DataItem 即可
+     */
+    @Override
+    protected DataItem getForCache(long uid) throws Exception {
+        short offset = (short) (uid & ((1L << 16) - 1));
+        uid >>>= 32;
+        int pgno = (int) (uid & ((1L << 32) - 1));
+        Page pg = pc.getPage(pgno);
+        return DataItem.parseDataItem(pg, offset, this);
+    }
+
+    /**
+     * 只需要将 DataItem 所在的页 release 即可
+     */
+    @Override
+    protected void releaseForCache(DataItem di) {
+        di.page().release();
+    }
+
+    // 在创建文件时初始化PageOne
+    void initPageOne() {
+        int pgno = pc.newPage(PageOne.InitRaw());
+        assert pgno == 1;
+        try {
+            pageOne = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pc.flushPage(pageOne);
+    }
+
+    // 在打开已有文件时时读入PageOne，并验证正确性
+    boolean loadCheckPageOne() {
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return PageOne.checkVc(pageOne);
+    }
+
+    /**
+     * 初始化 PageIndex，启动时重建：直接按空闲空间表载入，只有记录未知的页才需要读页
+     */
+    void fillPageIndex() {
+        // 这个pageNumber是打开的数据库文件的页面数量
+        int pageNumber = pc.getPageNumber();
+        // 从2开始，因为1是pageOne
+        pIndex.load(2, pageNumber);
+        // 页头只有 2 字节有用，绕过缓存并行扫描，不把整个文件读进缓存
+        for (int[] range : fsm.unknownRanges(2, pageNumber)) {
+            pc.scanPages(range[0], range[1], (pgno, page) -> pIndex.add(pgno, PageX.getFreeSpace(page)));
+        }
+    }
+
+    @Override
+    public void prefetch(Collection<Long> uids) {
+        TreeSet<Integer> pgnos = new TreeSet<>();
+        for (long uid : uids) {
+            pgnos.add((int) (uid >>> 32));
+        }
+        if (pgnos.size() < 2) {
+            return; // 单页读取没有预读的必要
+        }
+        int from = -1, last = -1;
+        for (int pgno : pgnos) {
+            if (from < 0) {
+                from = last = pgno;
+            } else if (pgno - last <= PREFETCH_GAP) {
+                last = pgno;
+            } else {
+                pc.prefetch(from, last - from + 1);
+                from = last = pgno;
+            }
+        }
+        pc.prefetch(from, last - from + 1);
+    }
+}
@@ -1,11 +1,17 @@
 package top.tankenqi.zingdb.backend.dm;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import com.google.common.primitives.Bytes;
 
@@ -18,159 +24,285 @@ import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 import top.tankenqi.zingdb.backend.tm.TransactionManager;
 import top.tankenqi.zingdb.backend.utils.Panic;
 import top.tankenqi.zingdb.backend.utils.Parser;
+import top.tankenqi.zingdb.backend.utils.Props;
+import top.tankenqi.zingdb.common.Error;
 
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
-    private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_UPDATE = 1; // 整个数据项的前后镜像，现在只会在旧日志中出现
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_DELTA = 3;
+    private static final byte LOG_TYPE_COMMIT = 4;
+    // LogType 的最高位：日志的数据部分经过 Deflate 压缩，见 insertLog
+    private static final int LOG_FLAG_COMPRESSED = 0x80;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    // 重做线程数，默认为 CPU 核数，1 表示在恢复线程上直接重做
+    public static final long DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    // 遇到检查点日志之前最多暂存这么多字节的重做日志，超过后不再按脏页表跳过
+    private static final long PENDING_BYTES = 64L << 20;
+
     /**
-     * REDO 用 raw 进行重放
-     * UNDO 则是将 raw 标记为无效，然后进行重放
+     * 插入与更新日志的公共部分，lsn 是日志在日志流中的位置
      */
-    static class InsertLogInfo {
+    static class LogInfo {
+        long lsn;
         long xid;
         int pgno;
         short offset;
-        byte[] raw;
+        byte[] log;
     }
 
     /**
-     * REDO 用 newRaw，UNDO 用 oldRaw
+     * REDO 用 raw 进行重放
+     * UNDO 则是将 raw 标记为无效，然后进行重放
+     * raw 是 log[rawOff, rawOff + rawLen)，直接引用日志记录，不拷贝
      */
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    static class InsertLogInfo extends LogInfo {
+        int rawOff;
+        int rawLen;
+    }
+
+    /**
+     * REDO 用 newRaw，UNDO 用 oldRaw，
+     * 两者分别是 log[oldOff, oldOff + len) 与 log[newOff, newOff + len)
+     */
+    static class UpdateLogInfo extends LogInfo {
+        int oldOff;
+        int newOff;
+        int len;
+    }
+
+    /**
+     * 模糊检查点：写检查点时的活跃事务表（xid -> 第一条日志的 LSN 下界）
+     * 与脏页表（pgno -> recLSN），redoLsn 是两者与检查点开始位置 begin 中的最小值，恢复从这里开始读日志；
+     * 脏页表在 begin 时取得，之后写的日志不受它约束
+     */
+    static class CheckpointLogInfo {
+        long redoLsn;
+        long begin;
+        int pageNumber;
+        Map<Long, Long> activeXids;
+        Map<Integer, Long> dirtyPages;
     }
 
+    /**
+     * 恢复只读一遍日志：
+     *   - 非活跃（已提交或已回滚完成）事务的日志读到就交给重做线程按新数据重做；
+     *   - 活跃事务的日志按事务串成链，读完后从链尾往回逐条撤销，然后把事务标记为回滚；
+     *   - 顺便求出日志涉及的最大页号，重做完成后把数据文件截断到这里。
+     * 重做与撤销涉及的页都不超过最大页号，所以截断放在重做之后不影响结果。
+     *
+     * 重做按页号分给 zingdb.recover.threads 个线程（默认为 CPU 核数），见 Redo。
+     * 检查点日志之前的重做日志先暂存，读到检查点日志后按其中的脏页表跳过已经落盘的：
+     * 检查点时不在脏页表中的页，之前的修改都已写回；在脏页表中的页，LSN 小于其 recLSN 的修改已写回。
+     * 脏页表只说明检查点开始（begin）之前的修改，LSN 不小于 begin 的日志总要重做。
+     *
+     * 提交的持久性由提交日志保证，XID 文件中的提交状态可能还没写入，
+     * 所以先单独扫一遍日志，把有提交日志的事务标记为已提交，再按上面的方式恢复。
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
         System.out.println("Recovering...");
 
         /**
-         * 重置日志读取位置，从4字节位置开始读取
-         * 日志格式文件存储格式：
-         * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]，XChecksum是4字节
+         * 重置日志读取位置到检查点（没有检查点时是第一段的第一条日志）
+         * 日志由若干段组成，坏尾已在打开日志时截掉（见 LoggerImpl）
          */
+        applyCommitLogs(tm, lg);
         lg.rewind();
         int maxPgno = 0;
+        Map<Long, Boolean> active = new HashMap<>(); // 每个事务的状态只查一次 XID 文件
+        Map<Long, List<byte[]>> undoChains = new HashMap<>();
+        Redo redo = new Redo(pc, (int) Math.max(1L, Props.readLong("zingdb.recover.threads", DEFAULT_REDO_THREADS)));
+        List<LogInfo> pending = new ArrayList<>(); // 读到检查点日志之前暂存的重做日志，之后为 null
+        long pendingBytes = 0;
         while (true) {
             /**
              * 读取下一个日志，log是每条日志的[Data]部分,
-             * 每条日志的格式：[Size] [Checksum] [Data]
+             * 每条日志的格式：[Size] [Checksum] [LSN] [Data]
              */
             byte[] log = lg.next();
             if (log == null)
                 break;
+            log = decompress(log);
+            if (isCommitLog(log)) {
+                continue;
+            }
             int pgno;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
+            if (isCheckpointLog(log)) {
+                /**
+                 * 检查点之前的日志已经不读了，只有检查点时已有的页数才能说明
+                 * 那些日志涉及的页，截断不能低于它
+                 */
+                CheckpointLogInfo ci = parseCheckpointLog(log);
+                pgno = ci.pageNumber;
+                if (pending != null) {
+                    for (LogInfo li : pending) {
+                        Long recLsn = ci.dirtyPages.get(li.pgno);
+                        if (li.lsn >= ci.begin || recLsn != null && li.lsn >= recLsn) {
+                            redo.apply(li);
+                        }
+                    }
+                    pending = null;
+                }
             } else {
-                UpdateLogInfo li = parseUpdateLog(log);
+                LogInfo li = isInsertLog(log) ? parseInsertLog(log) : parseUpdateLog(log);
+                li.lsn = lg.lastLsn();
                 pgno = li.pgno;
+                if (isActive(tm, active, li.xid)) {
+                    undoChains.computeIfAbsent(li.xid, k -> new ArrayList<>()).add(log);
+                } else if (pending == null) {
+                    redo.apply(li);
+                } else {
+                    pending.add(li);
+                    pendingBytes += log.length;
+                    if (pendingBytes > PENDING_BYTES) {
+                        pending.forEach(redo::apply);
+                        pending = null;
+                    }
+                }
             }
             if (pgno > maxPgno) {
                 maxPgno = pgno;
             }
         }
+        if (pending != null) {
+            pending.forEach(redo::apply);
+        }
+        redo.finish();
+        System.out.println("Redo Transactions Over.");
+
         if (maxPgno == 0) {
             maxPgno = 1;
         }
-
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        // 重做已完成（非活跃）事务
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
         // 回滚未完成（活跃）事务
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, pc, undoChains);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
     /**
-     * 对非活跃事务（即已提交或已回滚完成）的日志重做。
-     * 
-     * @param tm
-     * @param lg
-     * @param pc
+     * 并行重做：按页号把重做日志分给若干线程，每个线程按日志顺序重放分给自己的页，
+     * 同一页的日志总在同一线程上、顺序不变，不同页的重放互不影响
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null)
-                break;
-            if (isInsertLog(log)) { // 如果是插入操作，按新数据重放
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
+    private static class Redo {
+        private static final LogInfo END = new LogInfo();
+
+        private final PageCache pc;
+        private final List<BlockingQueue<LogInfo>> queues = new ArrayList<>();
+        private final List<Thread> workers = new ArrayList<>();
+
+        Redo(PageCache pc, int threads) {
+            this.pc = pc;
+            if (threads <= 1) {
+                return;
+            }
+            for (int i = 0; i < threads; i++) {
+                BlockingQueue<LogInfo> queue = new ArrayBlockingQueue<>(1024);
+                Thread t = new Thread(() -> {
+                    try {
+                        LogInfo li;
+                        while ((li = queue.take()) != END) {
+                            redo(pc, li);
+                        }
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }, "zingdb-redo-" + i);
+                t.setDaemon(true);
+                t.start();
+                queues.add(queue);
+                workers.add(t);
+            }
+        }
+
+        void apply(LogInfo li) {
+            if (queues.isEmpty()) {
+                redo(pc, li);
+                return;
+            }
+            try {
+                queues.get(Math.floorMod(li.pgno, queues.size())).put(li);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        /**
+         * 等所有已交给重做线程的日志重放完
+         */
+        void finish() {
+            try {
+                for (BlockingQueue<LogInfo> queue : queues) {
+                    queue.put(END);
                 }
-            } else { // 如果是更新操作，按新值重放
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+                for (Thread t : workers) {
+                    t.join();
                 }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        private static void redo(PageCache pc, LogInfo li) {
+            if (li instanceof InsertLogInfo) { // 如果是插入操作，按新数据重放
+                doInsertLog(pc, (InsertLogInfo) li, REDO);
+            } else { // 如果是更新操作，按新值重放
+                doUpdateLog(pc, (UpdateLogInfo) li, REDO);
             }
         }
     }
 
     /**
-     * 筛出活跃事务的日志，并按事务聚合，
-     * 随后对每个活跃事务“逆序回放”以撤销其影响
-     * 
-     * @param tm
-     * @param lg
-     * @param pc
+     * 把日志中有提交日志、但 XID 文件里还是活跃的事务标记为已提交，一次写入 XID 文件。
+     * 检查点之前的提交日志不会被读到：检查点在去掉已结束的活跃事务之后会把提交状态写入 XID 文件
      */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
+    private static void applyCommitLogs(TransactionManager tm, Logger lg) {
         lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null)
-                break;
-            if (isInsertLog(log)) { // 如果是插入操作，撤销时把插入的数据标记为无效
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else { // 如果是更新操作，撤销时把新值恢复成旧值
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
+        byte[] log;
+        while ((log = lg.next()) != null) {
+            if (isCommitLog(log)) {
+                long xid = ByteBuffer.wrap(log).getLong(OF_XID);
                 if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                    tm.commitAsync(xid);
                 }
             }
         }
+        tm.flushCommits(() -> {});
+    }
+
+    private static boolean isActive(TransactionManager tm, Map<Long, Boolean> active, long xid) {
+        Boolean res = active.get(xid);
+        if (res == null) {
+            res = tm.isActive(xid);
+            active.put(xid, res);
+        }
+        return res;
+    }
 
-        // 对所有active log进行倒序undo
-        for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+    /**
+     * 对每个活跃事务“逆序回放”日志链以撤销其影响，然后把事务标记为回滚
+     * 
+     * @param tm
+     * @param pc
+     * @param undoChains 活跃事务 -> 按日志顺序排列的日志
+     */
+    private static void undoTranscations(TransactionManager tm, PageCache pc, Map<Long, List<byte[]>> undoChains) {
+        for (Entry<Long, List<byte[]>> entry : undoChains.entrySet()) {
             List<byte[]> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0; i--) {
                 byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+                if (isInsertLog(log)) { // 如果是插入操作，撤销时把插入的数据标记为无效
+                    doInsertLog(pc, parseInsertLog(log), UNDO);
+                } else { // 如果是更新操作，撤销时把新值恢复成旧值
+                    doUpdateLog(pc, parseUpdateLog(log), UNDO);
                 }
             }
             tm.abort(entry.getKey());
@@ -181,58 +313,116 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static boolean isCommitLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMMIT;
+    }
+
+    // Commit Log 的格式：[LogType] [XID]
+    public static byte[] commitLog(long xid) {
+        return ByteBuffer.allocate(1 + 8).put(LOG_TYPE_COMMIT).putLong(xid).array();
+    }
+
+    // Checkpoint Log 的格式：[LogType] [RedoLsn] [Begin] [PageNumber] [N] [XID, FirstLsn] * N [M] [Pgno, RecLsn] * M
+    public static byte[] checkpointLog(long redoLsn, long begin, int pageNumber, Map<Long, Long> activeXids, Map<Integer, Long> dirtyPages) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 8 + 4 + 4 + activeXids.size() * 16 + 4 + dirtyPages.size() * 12);
+        buf.put(LOG_TYPE_CHECKPOINT).putLong(redoLsn).putLong(begin).putInt(pageNumber);
+        buf.putInt(activeXids.size());
+        for (Entry<Long, Long> e : activeXids.entrySet()) {
+            buf.putLong(e.getKey()).putLong(e.getValue());
+        }
+        buf.putInt(dirtyPages.size());
+        for (Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            buf.putInt(e.getKey()).putLong(e.getValue());
+        }
+        return buf.array();
+    }
+
+    static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log, 1, log.length - 1);
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.redoLsn = buf.getLong();
+        ci.begin = buf.getLong();
+        ci.pageNumber = buf.getInt();
+        ci.activeXids = new HashMap<>();
+        for (int n = buf.getInt(); n > 0; n--) {
+            ci.activeXids.put(buf.getLong(), buf.getLong());
+        }
+        ci.dirtyPages = new HashMap<>();
+        for (int n = buf.getInt(); n > 0; n--) {
+            ci.dirtyPages.put(buf.getInt(), buf.getLong());
+        }
+        return ci;
+    }
+
     // Update Log 的格式：[LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
     private static final int OF_UPDATE_UID = OF_XID + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
 
+    /**
+     * Delta Log 的格式：[LogType] [XID] [UID] [DeltaOffset] [OldBytes] [NewBytes]
+     * 只记录数据项中新旧内容不同的那一段 [DeltaOffset, DeltaOffset + len)，len = (日志长度 - OF_DELTA_RAW) / 2；
+     * 例如删除时只改 XMAX，日志只带 8 字节的新旧值，而不是整个数据项的前后镜像
+     */
+    private static final int OF_DELTA_OFFSET = OF_UPDATE_RAW;
+    private static final int OF_DELTA_RAW = OF_DELTA_OFFSET + 2;
+
+    /**
+     * 为数据项的一次修改生成日志，只包含修改前后不同的那一段（旧版全量镜像的 Update Log 仍可恢复）
+     */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = { LOG_TYPE_UPDATE };
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        int from = 0, to = oldRaw.length;
+        while (from < to && raw.get(from) == oldRaw[from]) {
+            from++;
+        }
+        while (to > from && raw.get(to - 1) == oldRaw[to - 1]) {
+            to--;
+        }
+        int len = to - from;
+        ByteBuffer buf = ByteBuffer.allocate(OF_DELTA_RAW + len * 2);
+        buf.put(LOG_TYPE_DELTA).putLong(xid).putLong(di.getUid()).putShort((short) from);
+        buf.put(oldRaw, from, len);
+        raw.get(from, buf.array(), OF_DELTA_RAW + len, len);
+        return buf.array();
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = buf.getLong(OF_XID);
+        long uid = buf.getLong(OF_UPDATE_UID);
         li.offset = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int) (uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        li.log = log;
+        int rawOff = OF_UPDATE_RAW;
+        if (log[OF_TYPE] == LOG_TYPE_DELTA) {
+            li.offset += buf.getShort(OF_DELTA_OFFSET);
+            rawOff = OF_DELTA_RAW;
+        }
+        li.len = (log.length - rawOff) / 2;
+        li.oldOff = rawOff;
+        li.newOff = rawOff + li.len;
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
+    private static void doUpdateLog(PageCache pc, UpdateLogInfo xi, int flag) {
+        int from = flag == REDO ? xi.newOff : xi.oldOff;
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(xi.pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            PageX.recoverUpdate(pg, xi.log, from, xi.len, xi.offset);
         } finally {
             pg.release();
         }
@@ -251,17 +441,79 @@ public class Recover {
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
+    /**
+     * raw 不少于 compressBytes 字节（compressBytes 为 0 时不压缩）时，把 [Raw] 用 Deflate 压缩，
+     * LogType 打上 LOG_FLAG_COMPRESSED：[LogType | 0x80] [XID] [Pgno] [Offset] [RawLength] [Deflated Raw]；
+     * 压缩后不比原来小就保留原样
+     */
+    public static byte[] insertLog(long xid, Page pg, byte[] raw, int compressBytes) {
+        byte[] log = insertLog(xid, pg, raw);
+        if (compressBytes <= 0 || raw.length < compressBytes) {
+            return log;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = new byte[log.length];
+        int pos = OF_INSERT_RAW + 4;
+        while (!deflater.finished() && pos < out.length) {
+            pos += deflater.deflate(out, pos, out.length - pos);
+        }
+        if (!deflater.finished()) {
+            return log;
+        }
+        System.arraycopy(log, 0, out, 0, OF_INSERT_RAW);
+        out[OF_TYPE] |= LOG_FLAG_COMPRESSED;
+        ByteBuffer.wrap(out).putInt(OF_INSERT_RAW, raw.length);
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    /**
+     * 压缩过的日志还原成未压缩的格式，其余原样返回
+     */
+    private static byte[] decompress(byte[] log) {
+        if ((log[OF_TYPE] & LOG_FLAG_COMPRESSED) == 0) {
+            return log;
+        }
+        int rawLength = ByteBuffer.wrap(log).getInt(OF_INSERT_RAW);
+        byte[] res = new byte[OF_INSERT_RAW + rawLength];
+        System.arraycopy(log, 0, res, 0, OF_INSERT_RAW);
+        res[OF_TYPE] &= ~LOG_FLAG_COMPRESSED;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(log, OF_INSERT_RAW + 4, log.length - OF_INSERT_RAW - 4);
+            int pos = OF_INSERT_RAW;
+            while (pos < res.length && !inflater.finished()) {
+                int n = inflater.inflate(res, pos, res.length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            Panic.panic(e);
+        } finally {
+            inflater.end();
+        }
+        return res;
+    }
+
     private static InsertLogInfo parseInsertLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = buf.getLong(OF_XID);
+        li.pgno = buf.getInt(OF_INSERT_PGNO);
+        li.offset = buf.getShort(OF_INSERT_OFFSET);
+        li.log = log;
+        li.rawOff = OF_INSERT_RAW;
+        li.rawLen = log.length - OF_INSERT_RAW;
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
+    private static void doInsertLog(PageCache pc, InsertLogInfo li, int flag) {
         Page pg = null;
         try {
             pg = pc.getPage(li.pgno);
@@ -274,9 +526,12 @@ public class Recover {
              * 则先将raw标记为无效，再重放
              */
             if (flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
+                byte[] raw = Arrays.copyOfRange(li.log, li.rawOff, li.rawOff + li.rawLen);
+                DataItem.setDataItemRawInvalid(raw);
+                PageX.recoverInsert(pg, raw, li.offset);
+            } else {
+                PageX.recoverInsert(pg, li.log, li.rawOff, li.rawLen, li.offset);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
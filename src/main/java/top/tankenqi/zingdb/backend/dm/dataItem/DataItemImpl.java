@@ -44,24 +44,24 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return raw.get(OF_VALID) == (byte)0;
     }
 
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return raw.sub(OF_DATA);
     }
 
     @Override
     public void before() {
         wLock.lock();
         pg.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        raw.get(0, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        raw.put(0, oldRaw, 0, oldRaw.length);
         wLock.unlock();
     }
 
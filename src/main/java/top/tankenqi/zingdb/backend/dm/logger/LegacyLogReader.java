@@ -0,0 +1,122 @@
+package top.tankenqi.zingdb.backend.dm.logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import top.tankenqi.zingdb.backend.utils.Panic;
+import top.tankenqi.zingdb.backend.utils.Parser;
+import top.tankenqi.zingdb.common.Error;
+
+/**
+ * 旧版（版本 1）单文件日志的读取，只在升级旧库时使用
+ *
+ * 旧版日志文件格式为：
+ * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
+ * XChecksum 为后续所有日志计算的Checksum，int类型
+ *
+ * 每条正确日志的格式为：
+ * [Size] [Checksum] [Data]
+ */
+class LegacyLogReader {
+
+    private static final int SEED = 13331;
+
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    private final long fileSize;
+    private final int xChecksum;
+    private long position;
+    private int xCheck;
+
+    LegacyLogReader(RandomAccessFile raf) {
+        this.file = raf;
+        this.fc = raf.getChannel();
+        long size = 0;
+        ByteBuffer raw = ByteBuffer.allocate(4);
+        try {
+            size = raf.length();
+            fc.read(raw, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (size < 4) { // 日志文件长度至少要能容纳 XChecksum（4字节）
+            Panic.panic(Error.BadLogFileException);
+        }
+        this.fileSize = size;
+        this.xChecksum = Parser.parseInt(raw.array());
+        this.position = 4;
+    }
+
+    /**
+     * 依次返回每条日志的 [Data]，读到坏尾时返回 null；
+     * 读完时若重新计算的 XChecksum 与文件头不一致，认为日志文件损坏
+     */
+    byte[] next() {
+        byte[] log = internNext();
+        if (log == null) {
+            if (xCheck != xChecksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            return null;
+        }
+        xCheck = calChecksum(xCheck, log);
+        return Arrays.copyOfRange(log, OF_DATA, log.length);
+    }
+
+    private byte[] internNext() {
+        if (position + OF_DATA >= fileSize) {
+            return null;
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(4);
+        try {
+            fc.read(tmp, position);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        int size = Parser.parseInt(tmp.array());
+        if (size < 0 || position + size + OF_DATA > fileSize) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        try {
+            while (buf.hasRemaining()) {
+                fc.read(buf, position + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        byte[] log = buf.array();
+        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        if (checkSum1 != checkSum2) {
+            return null;
+        }
+        position += log.length;
+        return log;
+    }
+
+    private static int calChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+
+    void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package top.tankenqi.zingdb.backend.dm.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import top.tankenqi.zingdb.backend.utils.Crc32c;
+import top.tankenqi.zingdb.backend.utils.Panic;
+
+/**
+ * 日志段文件：日志目录下固定大小的一段日志，文件名为 16 位十六进制的段号
+ *
+ * 段头格式（HEADER_SIZE 字节，其余填 0）：
+ * [Magic 4] [Version 4] [SegmentNo 8] [SegmentSize 4] [Checksum 4]
+ * Checksum 是前 24 字节的 CRC32C
+ *
+ * 段号为 n 的段覆盖 LSN [n * SegmentSize, (n + 1) * SegmentSize)，段内偏移 off 处的日志 LSN 为 n * SegmentSize + off
+ *
+ * 预分配：段文件创建时就用 0 填满到 SegmentSize，之后追加日志只是覆盖已分配的块，
+ * 文件大小不变，fsync 只需刷数据（force(false)，相当于 fdatasync），不再伴随文件系统元数据的更新。
+ * 不再需要的段可以先改名为备用段文件 SPARE_FILE，之后再改名复用（recycle）为新的段，省去再次填 0，
+ * 残留的旧日志 LSN 对不上，读取时视为无效。备用段的文件名不是段号，打开日志时不会被当作日志的一部分。
+ */
+class LogSegment {
+
+    static final int MAGIC = 0x5a57414c; // "ZWAL"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final String SPARE_FILE = "spare";
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_NO = OF_VERSION + 4;
+    private static final int OF_SEG_SIZE = OF_NO + 8;
+    private static final int OF_CHECKSUM = OF_SEG_SIZE + 4;
+
+    // 填 0 时每次写入的字节数
+    private static final int ZERO_CHUNK = 1 << 16;
+
+    final long no;
+    final int segmentSize;
+    final File f;
+    final RandomAccessFile file;
+    final FileChannel fc;
+
+    private LogSegment(long no, int segmentSize, File f, RandomAccessFile file) {
+        this.no = no;
+        this.segmentSize = segmentSize;
+        this.f = f;
+        this.file = file;
+        this.fc = file.getChannel();
+    }
+
+    static String fileName(long no) {
+        return String.format("%016x", no);
+    }
+
+    /**
+     * 文件名是否是段文件，是则返回段号，否则返回 -1
+     */
+    static long parseNo(String name) {
+        if (name.length() != 16) {
+            return -1;
+        }
+        try {
+            return Long.parseUnsignedLong(name, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 新建段文件并写入段头，preallocate 时把文件用 0 填满到段大小，fsync 后返回
+     */
+    static LogSegment create(File dir, long no, int segmentSize, boolean preallocate) {
+        File f = new File(dir, fileName(no));
+        LogSegment seg = null;
+        try {
+            seg = new LogSegment(no, segmentSize, f, new RandomAccessFile(f, "rw"));
+            seg.fc.truncate(0);
+            seg.writeHeader();
+            if (preallocate) {
+                seg.fill(HEADER_SIZE, segmentSize);
+            }
+            seg.fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return seg;
+    }
+
+    /**
+     * 把备用段文件 spare 改名为段号 no 的段并重写段头；文件不足段大小时补 0。
+     * 改名后、段头写入前崩溃时段头与文件名不符，打开时当作创建到一半的段处理
+     */
+    static LogSegment recycle(File spare, File dir, long no, int segmentSize) {
+        File f = new File(dir, fileName(no));
+        LogSegment seg = null;
+        try {
+            Files.move(spare.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            seg = new LogSegment(no, segmentSize, f, new RandomAccessFile(f, "rw"));
+            seg.writeHeader();
+            long size = seg.fc.size();
+            if (size < segmentSize) {
+                seg.fill((int) Math.max(size, HEADER_SIZE), segmentSize);
+            }
+            seg.fc.force(size < segmentSize);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return seg;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OF_MAGIC, MAGIC);
+        header.putInt(OF_VERSION, VERSION);
+        header.putLong(OF_NO, no);
+        header.putInt(OF_SEG_SIZE, segmentSize);
+        header.putInt(OF_CHECKSUM, Crc32c.checksum(header.array(), 0, OF_CHECKSUM));
+        write(header, 0);
+    }
+
+    /**
+     * 把段内偏移 off 之后的内容清为 0 并落盘，用来代替截断：文件保持预分配的大小，
+     * 之后在 off 处追加的日志也不会接上坏尾之后残留的有效日志
+     */
+    void zeroFrom(int off) throws IOException {
+        fill(off, segmentSize);
+        fc.force(false);
+    }
+
+    private void fill(int from, int to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        for (int off = from; off < to; off += ZERO_CHUNK) {
+            zeros.clear();
+            zeros.limit(Math.min(ZERO_CHUNK, to - off));
+            write(zeros, off);
+        }
+    }
+
+    /**
+     * 打开段文件并校验段头，段头损坏（例如创建时崩溃）时返回 null
+     */
+    static LogSegment open(File f) {
+        long no = parseNo(f.getName());
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            raf.getChannel().read(header, 0);
+            if (header.position() < HEADER_SIZE
+                    || header.getInt(OF_MAGIC) != MAGIC
+                    || header.getInt(OF_VERSION) != VERSION
+                    || header.getLong(OF_NO) != no
+                    || header.getInt(OF_CHECKSUM) != Crc32c.checksum(header.array(), 0, OF_CHECKSUM)) {
+                raf.close();
+                return null;
+            }
+            return new LogSegment(no, header.getInt(OF_SEG_SIZE), f, raf);
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    long baseLsn() {
+        return no * segmentSize;
+    }
+
+    void write(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+
+    void read(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void delete() {
+        close();
+        f.delete();
+    }
+}
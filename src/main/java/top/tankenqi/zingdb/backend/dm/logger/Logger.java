@@ -1,82 +1,88 @@
 package top.tankenqi.zingdb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import top.tankenqi.zingdb.backend.utils.Panic;
-import top.tankenqi.zingdb.backend.utils.Parser;
 import top.tankenqi.zingdb.common.Error;
 
 public interface Logger {
-    void log(byte[] data);
+    /**
+     * 写入一条日志，返回时日志已经落盘
+     *
+     * @return 这条日志的 LSN
+     */
+    long log(byte[] data);
+
+    /**
+     * 写入一条日志但不等待落盘，后台 flusher 会尽快把它写出（异步提交的事务使用）
+     *
+     * @return 这条日志的 LSN
+     */
+    long logAsync(byte[] data);
+
+    /**
+     * 等待目前已写入的日志全部落盘
+     */
+    void flush();
 
     void truncate(long x) throws Exception;
 
     byte[] next();
 
+    /**
+     * 上一次 next() 返回的日志的 LSN
+     */
+    long lastLsn();
+
+    /**
+     * 重置读取位置：有检查点时从检查点开始，否则从第一段开始
+     */
     void rewind();
 
+    /**
+     * 下一条日志的 LSN
+     */
+    long end();
+
+    /**
+     * 记录检查点：lsn 之前的日志对恢复不再有用，之后的恢复从 lsn 开始读取，
+     * lsn 所在段之前的段按保留策略归档或删除
+     */
+    void checkpoint(long lsn);
+
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        try {
-            if (!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
+        File dir = new File(path + LoggerImpl.LOG_SUFFIX);
+        if (dir.exists()) {
+            Panic.panic(Error.FileExistsException);
         }
-        if (!f.canRead() || !f.canWrite()) {
+        if (!dir.mkdirs() || !dir.canRead() || !dir.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        int segmentSize = (int) Math.min(1024L, Math.max(1L,
+                Long.getLong("zingdb.log.segment.mb", LoggerImpl.DEFAULT_SEGMENT_SIZE >> 20))) << 20;
+        LoggerImpl lg = LoggerImpl.create(dir, segmentSize);
+        lg.start();
+        return lg;
     }
 
     public static Logger open(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if (!f.exists()) {
+        File dir = new File(path + LoggerImpl.LOG_SUFFIX);
+        File legacy = new File(path + LoggerImpl.LOG_SUFFIX + LoggerImpl.LEGACY_SUFFIX);
+        if (dir.isFile() || legacy.exists()) {
+            LoggerImpl.upgrade(path);
+        }
+        if (!dir.exists()) {
             Panic.panic(Error.FileNotExistsException);
         }
-        if (!f.canRead() || !f.canWrite()) {
+        if (!dir.isDirectory() || !dir.canRead() || !dir.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
-
+        LoggerImpl lg = LoggerImpl.open(dir);
+        lg.start();
         return lg;
     }
 }
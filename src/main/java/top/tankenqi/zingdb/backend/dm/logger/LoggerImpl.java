@@ -1,261 +1,839 @@
 package top.tankenqi.zingdb.backend.dm.logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import com.google.common.primitives.Bytes;
-
+import top.tankenqi.zingdb.backend.utils.Crc32c;
 import top.tankenqi.zingdb.backend.utils.Panic;
-import top.tankenqi.zingdb.backend.utils.Parser;
+import top.tankenqi.zingdb.backend.utils.Props;
 import top.tankenqi.zingdb.common.Error;
 
 /**
- * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * 
- * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
+ * 日志读写（日志格式版本 2）
+ *
+ * 日志保存在 <path>.log 目录下，由固定大小的段文件组成（见 LogSegment），段号连续：
+ * [Segment n] [Segment n+1] ... [Segment m]
+ *
+ * 每个段的格式为：
+ * [SegmentHeader] [Log1] [Log2] ... [Switch] 或 [SegmentHeader] [Log1] ... [LogN] [BadTail]（最后一段）
+ *
+ * 每条日志的格式为：
+ * [Size] [Checksum] [LSN] [Data]
  * Size 4字节 int 标识 Data 长度
- * Checksum 4字节 int
+ * Checksum 4字节 int，Data 的 CRC32C
+ * LSN 8字节 long，这条日志在日志流中的位置（段号 * 段大小 + 段内偏移），
+ * 与实际位置不符的记录（例如复用旧段文件时残留的内容）视为无效
+ *
+ * 一条日志放不下时，在段尾写一条 Size 为 SWITCH 的记录，然后切换到下一段；
+ * 只有以 SWITCH 结尾的段之后的段才算数，所以某一批日志跨段写入时即使后一段先落盘，也不会越过前一段的坏尾。
+ *
+ * 相比旧版整个文件一个滚动的 XChecksum：追加日志不再回写文件头，
+ * 启动时各段可以并行校验，校验只需找到每段最后一条有效日志。
+ *
+ * 检查点：checkpoint(lsn) 把 lsn 原子地写入日志目录下的 CHECKPOINT_FILE，之后 rewind 从 lsn 开始读，
+ * lsn 所在段之前的段对恢复不再有用：其中最新的 zingdb.log.retain.segments 个（默认 0）继续留在日志目录，
+ * 更早的移动到 zingdb.log.archive.dir 指定的归档目录，未配置归档目录时直接删除。
+ *
+ * 组提交：log 只把日志追加到内存缓冲，然后等待自己的日志落盘；
+ * 后台 flusher 线程把缓冲中攒下的一批日志一次写入，每个涉及的段只 fsync 一次，
+ * 之后唤醒这一批的所有写入者。上一批 fsync 期间到达的日志自然攒成下一批。
+ * 设置 zingdb.log.group.wait.us（默认 0）后，flusher 拿到第一条日志会再最多等这么多微秒收集更多日志，
+ * 用单条日志的延迟换更大的批次；缓冲超过 GROUP_BYTES 时不再等待。
+ *
+ * 预分配：zingdb.log.preallocate（默认 true）时段文件创建即填满，追加写在记录的尾部偏移处覆盖写，
+ * 不改变文件大小，每批只需 force(false)；打开时的坏尾清 0 而不截断文件。
+ * 检查点释放的段在不归档时留一个作为备用段，下次切段时改名复用，不必重新填 0。
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
+    public static final String LOG_SUFFIX = ".log";
+    // 升级期间旧版日志文件的后缀
+    static final String LEGACY_SUFFIX = ".v1";
+    // 记录检查点 LSN 的文件：[LSN 8] [Checksum 4]
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    public static final long DEFAULT_GROUP_WAIT_US = 0L;
+    // 缓冲中的日志超过这么多字节时 flusher 不再等待，立即写出
+    private static final int GROUP_BYTES = 1 << 20;
+    // next() 每次从段文件预读这么多字节
+    private static final int READ_AHEAD = 1 << 20;
 
     /**
      * 每条日志的格式如下：
-     * [Size][Checksum][Data]
+     * [Size][Checksum][LSN][Data]
      */
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    private static final int OF_LSN = OF_CHECKSUM + 4;
+    private static final int OF_DATA = OF_LSN + 8;
 
-    public static final String LOG_SUFFIX = ".log";
+    // Size 为 SWITCH 的记录表示本段到此结束，后续日志在下一段
+    private static final int SWITCH = -1;
+
+    /**
+     * 缓冲中写往同一段的一段连续日志
+     */
+    private static class Chunk {
+        final long segNo;
+        final int offset;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+        Chunk(long segNo, int offset) {
+            this.segNo = segNo;
+            this.offset = offset;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final TreeMap<Long, LogSegment> segments; // 由 lock 保护
     private Lock lock;
+    private Lock checkpointLock; // 串行化检查点，检查点的文件读写在 lock 之外进行
+    private Condition pending; // 缓冲中有待写出的日志
+    private Condition durable; // 一批日志已经落盘
+
+    private long tailNo; // 下一条日志写入的段号
+    private int tailOff; // 下一条日志写入的段内偏移
+    private List<Chunk> buffer; // 已追加、尚未写出的日志
+    private int bufferedBytes;
+    private long appendedEnd; // 已追加日志的结束 LSN
+    private long durableEnd; // 已落盘日志的结束 LSN
+    private long readLsn; // next() 的读取位置
+    private long lastLsn; // 上一次 next() 返回的日志的 LSN
+    private ByteBuffer readBuf; // 预读缓冲，[0, position) 是从 readBufLsn 开始的已落盘日志，不跨段
+    private long readBufLsn;
+    private long checkpointLsn; // 恢复开始读取的位置，0 表示从第一段开始
+    private boolean spare; // 目录下是否有备用段文件，由 lock 保护
 
-    private long position; // 当前日志指针的位置
-    private long fileSize; // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private final long retainSegments;
+    private final File archiveDir; // 为 null 时不归档
+    private final boolean preallocate;
+    private final long groupWaitNanos;
+    private final Thread flusher;
+    private volatile boolean closed;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    private LoggerImpl(File dir, int segmentSize, TreeMap<Long, LogSegment> segments, long endLsn) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.checkpointLsn = readCheckpoint(dir);
+        this.retainSegments = Props.readLong("zingdb.log.retain.segments", 0L);
+        String archive = System.getProperty("zingdb.log.archive.dir");
+        this.archiveDir = archive == null || archive.isEmpty() ? null : new File(archive);
+        this.preallocate = preallocate();
+        this.spare = new File(dir, LogSegment.SPARE_FILE).exists();
         lock = new ReentrantLock();
+        checkpointLock = new ReentrantLock();
+        pending = lock.newCondition();
+        durable = lock.newCondition();
+        buffer = new ArrayList<>();
+        tailNo = endLsn / segmentSize;
+        tailOff = (int) (endLsn % segmentSize);
+        appendedEnd = durableEnd = endLsn;
+        groupWaitNanos = TimeUnit.MICROSECONDS.toNanos(Props.readLong("zingdb.log.group.wait.us", DEFAULT_GROUP_WAIT_US));
+        flusher = new Thread(this::flushLoop, "zingdb-log-flusher");
+        flusher.setDaemon(true);
+        rewind();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    /**
+     * 在空目录 dir 中新建日志，只包含一个空的第 0 段
+     */
+    static LoggerImpl create(File dir, int segmentSize) {
+        TreeMap<Long, LogSegment> segments = new TreeMap<>();
+        segments.put(0L, LogSegment.create(dir, 0, segmentSize, preallocate()));
+        syncDir(dir);
+        return new LoggerImpl(dir, segmentSize, segments, LogSegment.HEADER_SIZE);
     }
 
     /**
-     * 这个初始化是对打开已有的日志文件的初始化，而不是创建新的日志文件的初始化
+     * 打开已有的日志：并行校验各段，找到日志的有效结尾，移除坏尾与其后的段
      */
-    void init() {
-        long size = 0;
+    static LoggerImpl open(File dir) {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                long no = LogSegment.parseNo(f.getName());
+                if (no >= 0) {
+                    files.put(no, f);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+
+        List<File> ordered = new ArrayList<>(files.values());
+        SegmentScan[] scans = scanAll(ordered);
+
+        if (scans[0].seg == null) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        int segmentSize = scans[0].seg.segmentSize;
+        TreeMap<Long, LogSegment> segments = new TreeMap<>();
+        long endLsn = -1;
+        boolean ended = false;
+        for (int i = 0; i < scans.length; i++) {
+            LogSegment seg = scans[i].seg;
+            boolean live = !ended && seg != null && seg.segmentSize == segmentSize
+                    && (segments.isEmpty() || seg.no == segments.lastKey() + 1);
+            if (!live) {
+                ended = true;
+                // 日志在前一段已经结束，这一段是坏尾之后的内容或创建到一半的段
+                if (seg != null) {
+                    seg.delete();
+                } else {
+                    ordered.get(i).delete();
+                }
+                continue;
+            }
+            segments.put(seg.no, seg);
+            if (!scans[i].switched) {
+                endLsn = seg.baseLsn() + scans[i].end;
+                ended = true;
+            }
+        }
+        if (endLsn < 0) {
+            // 最后一段以 SWITCH 结尾，下一段还没来得及创建
+            endLsn = (segments.lastKey() + 1) * segmentSize + LogSegment.HEADER_SIZE;
+        }
+
+        LoggerImpl lg = new LoggerImpl(dir, segmentSize, segments, endLsn);
         try {
-            size = file.length();
-        } catch (IOException e) {
+            // 截断到正常日志的末尾，这样就把坏尾给截断了
+            lg.truncate(endLsn);
+        } catch (Exception e) {
             Panic.panic(e);
         }
-        if (size < 4) { // 日志文件长度至少要能容纳 XChecksum（4字节）
-            Panic.panic(Error.BadLogFileException);
+        return lg;
+    }
+
+    /**
+     * 单个段的校验结果：end 为最后一条有效日志之后的段内偏移，switched 表示段以 SWITCH 正常结束
+     */
+    private static class SegmentScan {
+        LogSegment seg;
+        int end;
+        boolean switched;
+    }
+
+    private static SegmentScan[] scanAll(List<File> files) {
+        SegmentScan[] scans = new SegmentScan[files.size()];
+        AtomicInteger next = new AtomicInteger(0);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < scans.length) {
+                scans[i] = scan(files.get(i));
+            }
+        };
+        int threads = Math.min(scans.length, Runtime.getRuntime().availableProcessors());
+        Thread[] helpers = new Thread[Math.max(0, threads - 1)];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, "zingdb-log-scanner-" + i);
+            helpers[i].start();
         }
+        worker.run();
+        try {
+            for (Thread t : helpers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        return scans;
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    private static SegmentScan scan(File f) {
+        SegmentScan res = new SegmentScan();
+        res.seg = LogSegment.open(f);
+        if (res.seg == null) {
+            return res;
+        }
+        LogSegment seg = res.seg;
+        ByteBuffer buf = null;
         try {
-            fc.position(0);
-            fc.read(raw);
+            buf = ByteBuffer.allocate((int) Math.min(seg.fc.size(), seg.segmentSize));
+            seg.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+        int len = buf.position();
+        byte[] raw = buf.array();
+        int off = LogSegment.HEADER_SIZE;
+        while (off + OF_DATA <= len) {
+            int size = buf.getInt(off + OF_SIZE);
+            if (buf.getLong(off + OF_LSN) != seg.baseLsn() + off) {
+                break;
+            }
+            if (size == SWITCH) {
+                res.switched = true;
+                off += OF_DATA;
+                break;
+            }
+            if (size < 0 || off + OF_DATA + size > len
+                    || buf.getInt(off + OF_CHECKSUM) != Crc32c.checksum(raw, off + OF_DATA, size)) {
+                break;
+            }
+            off += OF_DATA + size;
+        }
+        res.end = off;
+        return res;
+    }
 
-        checkAndRemoveTail();
+    /**
+     * 启动后台 flusher，由 Logger.create / open 在初始化完成后调用
+     */
+    void start() {
+        flusher.start();
     }
 
-    // 检查并移除bad tail，bad tail 是在数据库崩溃时，没有来得及写完的日志数据
-    private void checkAndRemoveTail() {
-        // 将指针重置到日志文件的开始，即XChecksum位置后面
-        rewind();
+    /**
+     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，
+     * 追加到缓冲，然后等待 flusher 把包含这条日志的一批写入磁盘，
+     * 返回时这条日志已经落盘
+     */
+    @Override
+    public long log(byte[] data) {
+        long lsn = logAsync(data);
+        waitDurable(lsn + OF_DATA + data.length);
+        return lsn;
+    }
 
-        int xCheck = 0;
-        // 重新计算一遍 xChecksum
-        while (true) {
-            byte[] log = internNext(); // 读取下一个日志
-            if (log == null)
-                break;
-            xCheck = calChecksum(xCheck, log);
+    /**
+     * 追加一条日志到缓冲，不等待落盘，返回它的 LSN
+     */
+    @Override
+    public long logAsync(byte[] data) {
+        // 将数据包裹成日志格式，校验和在锁外计算
+        byte[] log = wrapLog(data);
+        if (LogSegment.HEADER_SIZE + log.length + OF_DATA > segmentSize) {
+            Panic.panic(Error.DataTooLargeException);
         }
-        /**
-         * 如果计算出的xChecksum与文件头中的xChecksum不一致，
-         * 则认为日志文件损坏，这里并没有用到坏尾做计算
-         */
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        lock.lock();
+        try {
+            if (tailOff + log.length + OF_DATA > segmentSize) {
+                // 本段放不下这条日志与段尾的 SWITCH，写 SWITCH 后切换到下一段
+                buffered(switchRecord(lsn(tailNo, tailOff)));
+                tailNo++;
+                tailOff = LogSegment.HEADER_SIZE;
+            }
+            long lsn = lsn(tailNo, tailOff);
+            ByteBuffer.wrap(log).putLong(OF_LSN, lsn);
+            buffered(log);
+            pending.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        /**
-         * 截断日志文件到正常日志的末尾，这样就把坏尾给截断了
-         */
+    /**
+     * 等待目前已追加的日志全部落盘
+     */
+    @Override
+    public void flush() {
+        lock.lock();
         try {
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+            waitDurable(appendedEnd);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        /**
-         * 把文件写指针移动到 position，后续追加的新日志就会从这里继续写入，
-         * 与截断配合，先删掉坏尾，再把写游标放到正确位置，
-         * 保证新日志不会接在损坏数据后面
-         */
+    void waitDurable(long end) {
+        lock.lock();
         try {
-            file.seek(position);
+            while (durableEnd < end) {
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void buffered(byte[] rec) {
+        Chunk c = buffer.isEmpty() ? null : buffer.get(buffer.size() - 1);
+        if (c == null || c.segNo != tailNo) {
+            c = new Chunk(tailNo, tailOff);
+            buffer.add(c);
+        }
+        c.out.write(rec, 0, rec.length);
+        bufferedBytes += rec.length;
+        tailOff += rec.length;
+        appendedEnd = lsn(tailNo, tailOff);
+    }
+
+    private long lsn(long segNo, int offset) {
+        return segNo * segmentSize + offset;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Chunk> batch;
+            long end;
+            lock.lock();
+            try {
+                while (buffer.isEmpty() && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                long deadline = System.nanoTime() + groupWaitNanos;
+                while (!closed && bufferedBytes < GROUP_BYTES) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    try {
+                        pending.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = buffer;
+                buffer = new ArrayList<>();
+                bufferedBytes = 0;
+                end = appendedEnd;
+            } finally {
+                lock.unlock();
+            }
+
+            writeBatch(batch);
+
+            lock.lock();
+            try {
+                durableEnd = end;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按顺序写出各段的日志，再按同样的顺序逐段 fsync：
+     * 前一段的 SWITCH 先于后一段的日志落盘
+     */
+    private void writeBatch(List<Chunk> batch) {
+        List<LogSegment> touched = new ArrayList<>();
+        try {
+            for (Chunk c : batch) {
+                LogSegment seg = segment(c.segNo);
+                seg.write(ByteBuffer.wrap(c.out.toByteArray()), c.offset);
+                touched.add(seg);
+            }
+            for (LogSegment seg : touched) {
+                seg.fc.force(false); // 强制将数据写入磁盘
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
 
-        // 将指针重置到日志文件的开始，即XChecksum位置后面
-        rewind();
+    private LogSegment segment(long no) {
+        lock.lock();
+        try {
+            LogSegment seg = segments.get(no);
+            if (seg != null) {
+                return seg;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 只有 flusher 会新建段；有备用段时在锁内改名复用，不会与检查点释放新的备用段交错
+        LogSegment seg = null;
+        lock.lock();
+        try {
+            if (spare) {
+                seg = LogSegment.recycle(new File(dir, LogSegment.SPARE_FILE), dir, no, segmentSize);
+                spare = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (seg == null) {
+            seg = LogSegment.create(dir, no, segmentSize, preallocate);
+        }
+        syncDir(dir);
+        lock.lock();
+        try {
+            segments.put(no, seg);
+        } finally {
+            lock.unlock();
+        }
+        return seg;
+    }
+
+    private byte[] wrapLog(byte[] data) {
+        ByteBuffer log = ByteBuffer.allocate(OF_DATA + data.length);
+        log.putInt(OF_SIZE, data.length);
+        log.putInt(OF_CHECKSUM, Crc32c.checksum(data, 0, data.length));
+        System.arraycopy(data, 0, log.array(), OF_DATA, data.length);
+        return log.array();
+    }
+
+    private byte[] switchRecord(long lsn) {
+        ByteBuffer rec = ByteBuffer.allocate(OF_DATA);
+        rec.putInt(OF_SIZE, SWITCH);
+        rec.putLong(OF_LSN, lsn);
+        return rec.array();
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    /**
+     * 把日志截断到 LSN x：x 所在段截到段内偏移处，之后的段全部删除
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
+        try {
+            long no = x / segmentSize;
+            int off = (int) (x % segmentSize);
+            for (Map.Entry<Long, LogSegment> e : segments.tailMap(no, false).entrySet()) {
+                e.getValue().delete();
+            }
+            segments.tailMap(no, false).clear();
+            LogSegment seg = segments.get(no);
+            if (seg != null) {
+                if (preallocate) {
+                    seg.zeroFrom(off);
+                } else {
+                    seg.fc.truncate(off);
+                }
+            }
+            if (readBuf != null && readBufLsn + readBuf.position() > x) {
+                readBuf = null; // 预读的内容可能被之后写入的日志覆盖
+            }
+            tailNo = no;
+            tailOff = off;
+            appendedEnd = durableEnd = x;
+        } finally {
+            lock.unlock();
         }
-        return xCheck;
     }
 
     /**
-     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，
-     * 写入文件后，再更新文件的校验和，更新校验和时，
-     * 会刷新缓冲区，保证内容写入磁盘
+     * 顺序读取：日志从预读缓冲中解析，每 READ_AHEAD 字节才读一次段文件，
+     * 每条日志只把 [Data] 拷贝一次返回
      */
     @Override
-    public void log(byte[] data) {
-        // 将数据包裹成日志格式
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public byte[] next() {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
+            while (readLsn < durableEnd) {
+                LogSegment seg = segments.get(readLsn / segmentSize);
+                if (seg == null) {
+                    return null;
+                }
+                int pos = readAhead(seg, readLsn, OF_DATA);
+                if (pos < 0) {
+                    return null;
+                }
+                int size = readBuf.getInt(pos + OF_SIZE);
+                if (size == SWITCH) {
+                    readLsn = lsn(seg.no + 1, LogSegment.HEADER_SIZE);
+                    continue;
+                }
+                if (size < 0 || readBuf.getLong(pos + OF_LSN) != readLsn) {
+                    return null;
+                }
+                pos = readAhead(seg, readLsn, OF_DATA + size);
+                // 如果计算出的Checksum与读取的Checksum不一致，则认为日志数据损坏
+                if (pos < 0 || readBuf.getInt(pos + OF_CHECKSUM) != Crc32c.checksum(readBuf.array(), pos + OF_DATA, size)) {
+                    return null;
+                }
+                lastLsn = readLsn;
+                readLsn += OF_DATA + size;
+                // 返回[Size][Checksum][LSN][Data]这条日志中的[Data]部分
+                return Arrays.copyOfRange(readBuf.array(), pos + OF_DATA, pos + OF_DATA + size);
+            }
+            readBuf = null; // 读完了，之后通常不再读，释放预读缓冲
+            return null;
         } catch (IOException e) {
             Panic.panic(e);
+            return null;
         } finally {
             lock.unlock();
         }
-        // 更新文件的校验和
-        updateXChecksum(log);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    /**
+     * 保证 LSN [lsn, lsn + len) 在预读缓冲中，返回它在缓冲中的位置；超出段尾或已落盘日志的结尾时返回 -1。
+     * 只预读已落盘的部分，之后追加的日志不会与缓冲中的内容不一致
+     */
+    private int readAhead(LogSegment seg, long lsn, int len) throws IOException {
+        if (readBuf != null && lsn >= readBufLsn && lsn + len <= readBufLsn + readBuf.position()) {
+            return (int) (lsn - readBufLsn);
+        }
+        long limit = Math.min(seg.baseLsn() + segmentSize, durableEnd);
+        if (lsn + len > limit) {
+            return -1;
+        }
+        int cap = (int) Math.min(Math.max(READ_AHEAD, len), limit - lsn);
+        if (readBuf == null || readBuf.capacity() < cap) {
+            readBuf = ByteBuffer.allocate(Math.max(READ_AHEAD, cap));
+        }
+        readBuf.clear();
+        readBuf.limit(cap);
+        readBufLsn = lsn;
+        seg.read(readBuf, lsn - seg.baseLsn());
+        return readBuf.position() < len ? -1 : 0;
+    }
+
+    @Override
+    public long lastLsn() {
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false); // 强制将数据写入磁盘
-        } catch (IOException e) {
-            Panic.panic(e);
+            return lastLsn;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    @Override
+    public void rewind() {
+        lock.lock();
+        try {
+            long first = segments.isEmpty() ? tailNo : segments.firstKey();
+            readLsn = Math.max(lsn(first, LogSegment.HEADER_SIZE), Math.min(checkpointLsn, durableEnd));
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public void truncate(long x) throws Exception {
+    public long end() {
         lock.lock();
         try {
-            fc.truncate(x);
+            return appendedEnd;
         } finally {
             lock.unlock();
         }
     }
 
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
-            return null;
+    /**
+     * lock 只用来确定检查点 LSN 和摘下释放的段，写检查点文件、fsync、归档与删除段都在锁外进行，
+     * 期间并发的 log / logAsync 照常追加；检查点之间由 checkpointLock 串行化
+     */
+    @Override
+    public void checkpoint(long lsn) {
+        checkpointLock.lock();
+        try {
+            lock.lock();
+            try {
+                lsn = Math.min(lsn, appendedEnd);
+                if (lsn <= checkpointLsn) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            waitDurable(lsn);
+            writeCheckpoint(lsn);
+
+            // lsn 所在段之前的段都不再需要，保留最新的 retainSegments 个，其余归档或删除；
+            // 摘下之后 flusher 与 next() 都不会再访问它们
+            List<LogSegment> retired = new ArrayList<>();
+            boolean keepSpare;
+            lock.lock();
+            try {
+                checkpointLsn = lsn;
+                List<LogSegment> released = new ArrayList<>(segments.headMap(Math.min(lsn / segmentSize, tailNo)).values());
+                for (int i = 0; i < released.size() - retainSegments; i++) {
+                    LogSegment seg = released.get(i);
+                    segments.remove(seg.no);
+                    retired.add(seg);
+                }
+                keepSpare = archiveDir == null && preallocate && !spare;
+            } finally {
+                lock.unlock();
+            }
+            if (retired.isEmpty()) {
+                return;
+            }
+            for (LogSegment seg : retired) {
+                if (keepSpare) {
+                    makeSpare(seg);
+                    keepSpare = false;
+                } else {
+                    retire(seg);
+                }
+            }
+            syncDir(dir);
+        } finally {
+            checkpointLock.unlock();
         }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    }
+
+    private void retire(LogSegment seg) {
+        if (archiveDir == null) {
+            seg.delete();
+            return;
+        }
+        seg.close();
         try {
-            fc.position(position);
-            fc.read(tmp);
+            Files.createDirectories(archiveDir.toPath());
+            Files.move(seg.f.toPath(), new File(archiveDir, seg.f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+    }
+
+    /**
+     * 留作备用段，下次切段时复用；改名完成后才置 spare，flusher 不会看到改名到一半的备用段
+     */
+    private void makeSpare(LogSegment seg) {
+        seg.close();
+        try {
+            Files.move(seg.f.toPath(), new File(dir, LogSegment.SPARE_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        lock.lock();
+        try {
+            spare = true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 读取当前这条日志数据，是一个：[Size][Checksum][Data]的结构
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    /**
+     * 先写临时文件再原子改名，崩溃时要么是旧检查点要么是新检查点
+     */
+    private void writeCheckpoint(long lsn) {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putLong(0, lsn);
+        buf.putInt(8, Crc32c.checksum(buf.array(), 0, 8));
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
         try {
-            fc.position(position);
-            fc.read(buf);
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+                ch.force(false);
+            }
+            Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        syncDir(dir);
+    }
 
-        byte[] log = buf.array();
-        // 将[Data]部分拷贝出来，并用[Data]来重新计算当前这条日志数据的Checksum
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        // 读取当前这条日志数据的Checksum
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        // 如果计算出的Checksum与读取的Checksum不一致，则认为日志数据损坏
-        if (checkSum1 != checkSum2) {
-            return null;
+    /**
+     * 读取检查点 LSN，文件不存在或损坏时返回 0（从第一段开始读，总是安全的）
+     */
+    private static long readCheckpoint(File dir) {
+        File f = new File(dir, CHECKPOINT_FILE);
+        if (!f.exists()) {
+            return 0;
+        }
+        try {
+            byte[] raw = Files.readAllBytes(f.toPath());
+            if (raw.length != 12) {
+                return 0;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(raw);
+            return buf.getInt(8) == Crc32c.checksum(raw, 0, 8) ? buf.getLong(0) : 0;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
         }
-        position += log.length;
-        return log;
     }
 
     @Override
-    public byte[] next() {
+    public void close() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null)
-                return null;
-            // 返回[Size][Checksum][Data]这条日志中的[Data]部分
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            closed = true;
+            pending.signal();
         } finally {
             lock.unlock();
         }
+        try {
+            // flusher 退出前会把缓冲中剩余的日志写完
+            if (flusher.isAlive()) {
+                flusher.join();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        for (LogSegment seg : segments.values()) {
+            seg.close();
+        }
     }
 
-    @Override
-    public void rewind() {
-        position = 4;
-    }
+    /**
+     * 把旧版（版本 1）的单文件日志转换为段文件日志：
+     * 先把旧文件改名为 .log.v1，逐条读出后写入新建的日志目录，全部落盘后再删除旧文件；
+     * 转换中途退出时旧文件仍在，下次打开会清掉目录重新转换
+     */
+    static void upgrade(String path) {
+        File dir = new File(path + LOG_SUFFIX);
+        File legacy = new File(path + LOG_SUFFIX + LEGACY_SUFFIX);
+        if (dir.isFile()) {
+            if (legacy.exists() || !dir.renameTo(legacy)) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+        }
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        LoggerImpl lg = (LoggerImpl) Logger.create(path);
 
-    @Override
-    public void close() {
+        LegacyLogReader reader = null;
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            reader = new LegacyLogReader(new RandomAccessFile(legacy, "r"));
+        } catch (Exception e) {
             Panic.panic(e);
         }
+        byte[] data;
+        while ((data = reader.next()) != null) {
+            lg.logAsync(data);
+        }
+        lg.flush();
+        reader.close();
+        lg.close();
+        legacy.delete();
+    }
+
+    /**
+     * 新建或删除段文件后 fsync 日志目录，保证目录项落盘；不支持打开目录的平台上跳过
+     */
+    static void syncDir(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    private static boolean preallocate() {
+        return !"false".equalsIgnoreCase(System.getProperty("zingdb.log.preallocate", "true").trim());
     }
 
 }
@@ -1,5 +1,7 @@
 package top.tankenqi.zingdb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
     void unlock();
@@ -7,5 +9,21 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+
+    /**
+     * recLSN：自上次写回以来，第一条修改这一页的日志的 LSN（的下界），写回后清零；
+     * 0 表示页上没有未写回的、有日志记录的修改
+     */
+    long getRecLsn();
+
+    /**
+     * 写修改这一页的日志之前调用，页还没有 recLSN 时记为 lsn
+     */
+    void markRecLsn(long lsn);
+
+    /**
+     * 页帧内容，容量为 PAGE_SIZE，可能是堆内数组也可能是直接内存（见 FrameArena）
+     * 只能使用绝对位置读写，不要改动 position / limit；需要批量读写时先 duplicate()
+     */
+    ByteBuffer getBuffer();
 }
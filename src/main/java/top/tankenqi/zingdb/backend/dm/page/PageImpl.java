@@ -1,5 +1,7 @@
 package top.tankenqi.zingdb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -7,16 +9,26 @@ import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 
 public class PageImpl implements Page {
     private int pageNumber;
-    private byte[] data;
-    private boolean dirty;
+    private ByteBuffer data;
+    private volatile boolean dirty;
+    private volatile long recLsn;
     private Lock lock;
     
     private PageCache pc;
+    private final AtomicInteger dirtyPages; // 所属缓存的脏页计数，可以为 null
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc) {
+        this(pageNumber, data, pc, null);
+    }
+
+    /**
+     * @param dirtyPages 页在干净与脏之间切换时同步增减的计数器
+     */
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc, AtomicInteger dirtyPages) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
+        this.dirtyPages = dirtyPages;
         lock = new ReentrantLock();
     }
 
@@ -33,7 +45,20 @@ public class PageImpl implements Page {
     }
 
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if (dirty && this.dirty) {
+            return; // 已经是脏页，写路径上不必进入同步块
+        }
+        synchronized (this) {
+            if (this.dirty != dirty) {
+                this.dirty = dirty;
+                if (dirtyPages != null) {
+                    dirtyPages.addAndGet(dirty ? 1 : -1);
+                }
+            }
+            if (!dirty) {
+                recLsn = 0; // 写回之后，之前的日志对这一页都不再需要重做
+            }
+        }
     }
 
     public boolean isDirty() {
@@ -44,7 +69,17 @@ public class PageImpl implements Page {
         return pageNumber;
     }
 
-    public byte[] getData() {
+    public long getRecLsn() {
+        return recLsn;
+    }
+
+    public synchronized void markRecLsn(long lsn) {
+        if (recLsn == 0) {
+            recLsn = lsn;
+        }
+    }
+
+    public ByteBuffer getBuffer() {
         return data;
     }
 
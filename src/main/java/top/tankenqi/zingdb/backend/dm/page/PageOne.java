@@ -1,6 +1,6 @@
 package top.tankenqi.zingdb.backend.dm.page;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 import top.tankenqi.zingdb.backend.utils.RandomUtil;
@@ -17,7 +17,7 @@ public class PageOne {
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        setVcOpen(ByteBuffer.wrap(raw));
         return raw;
     }
 
@@ -27,11 +27,14 @@ public class PageOne {
      */
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
-        setVcOpen(pg.getData());
+        setVcOpen(pg.getBuffer());
     }
 
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
+    private static void setVcOpen(ByteBuffer raw) {
+        byte[] vc = RandomUtil.randomBytes(LEN_VC);
+        for (int i = 0; i < LEN_VC; i++) {
+            raw.put(OF_VC + i, vc[i]);
+        }
     }
 
     /**
@@ -40,11 +43,11 @@ public class PageOne {
      */
     public static void setVcClose(Page pg) {
         pg.setDirty(true);
-        setVcClose(pg.getData());
+        setVcClose(pg.getBuffer());
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC + LEN_VC, LEN_VC);
+    private static void setVcClose(ByteBuffer raw) {
+        raw.putLong(OF_VC + LEN_VC, raw.getLong(OF_VC));
     }
 
     /**
@@ -53,11 +56,10 @@ public class PageOne {
      * @return
      */
     public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+        return checkVc(pg.getBuffer());
     }
 
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC + LEN_VC),
-                Arrays.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
+    private static boolean checkVc(ByteBuffer raw) {
+        return raw.getLong(OF_VC) == raw.getLong(OF_VC + LEN_VC);
     }
 }
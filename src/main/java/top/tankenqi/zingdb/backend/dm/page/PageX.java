@@ -1,7 +1,8 @@
 package top.tankenqi.zingdb.backend.dm.page;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
+import top.tankenqi.zingdb.backend.common.SubArray;
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 import top.tankenqi.zingdb.backend.utils.Parser;
 
@@ -19,54 +20,69 @@ public class PageX {
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        System.arraycopy(Parser.short2Byte(OF_DATA), 0, raw, OF_FREE, OF_DATA);
         return raw;
     }
 
     // 设置FSO
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(Page pg, short ofData) {
+        pg.getBuffer().putShort(OF_FREE, ofData);
     }
 
     // 获取pg的FSO（Free Space Offset），即空闲位置偏移
     public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+        return pg.getBuffer().getShort(OF_FREE);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    // 整页视图，直接读写页帧
+    private static SubArray frame(Page pg) {
+        return new SubArray(pg.getBuffer(), 0, PageCache.PAGE_SIZE);
     }
 
     // 将raw插入pg中，返回插入位置
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData()); // 获取页面的空闲位置
-        // 将raw从pg.data的空闲位置处开始拷贝
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        short offset = getFSO(pg); // 获取页面的空闲位置
+        // 将raw从页帧的空闲位置处开始拷贝
+        frame(pg).put(offset, raw, 0, raw.length);
         // 更新FSO
-        setFSO(pg.getData(), (short) (offset + raw.length));
+        setFSO(pg, (short) (offset + raw.length));
         return offset;
     }
 
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+        return PageCache.PAGE_SIZE - (int) getFSO(pg);
+    }
+
+    // 直接从页内容读取空闲空间大小，用于绕过缓存的扫描
+    public static int getFreeSpace(ByteBuffer page) {
+        return PageCache.PAGE_SIZE - (int) page.getShort(OF_FREE);
     }
 
     // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, 0, raw.length, offset);
+    }
+
+    // 同上，插入的数据是raw[from, from + len)，恢复时直接从日志记录中取，不再拷贝
+    public static void recoverInsert(Page pg, byte[] raw, int from, int len, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        frame(pg).put(offset, raw, from, len);
 
-        short rawFSO = getFSO(pg.getData());
-        if (offset + raw.length > rawFSO) {
-            setFSO(pg.getData(), (short) (offset + raw.length));
+        short rawFSO = getFSO(pg);
+        if (offset + len > rawFSO) {
+            setFSO(pg, (short) (offset + len));
         }
     }
 
     // 将raw插入pg中的offset位置，不更新update
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+        recoverUpdate(pg, raw, 0, raw.length, offset);
+    }
+
+    public static void recoverUpdate(Page pg, byte[] raw, int from, int len, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        frame(pg).put(offset, raw, from, len);
     }
 }
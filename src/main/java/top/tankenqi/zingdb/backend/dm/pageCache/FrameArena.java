@@ -0,0 +1,51 @@
+package top.tankenqi.zingdb.backend.dm.pageCache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 直接内存页帧池
+ *
+ * 启动时按缓存容量一次性申请全部页帧：以 CHUNK_PAGES 页为一块调用 allocateDirect
+ * （单个 ByteBuffer 不能超过 2GB），再把每块切成 PAGE_SIZE 的页帧放入空闲队列。
+ * 页面载入时取一个页帧，被淘汰写回后归还，运行期间页数据不再占用堆，也不再产生新的页分配。
+ *
+ * 缓存的资源计数保证同时在用的页帧不超过容量；只有截断文件丢弃页面这类
+ * 计数先于归还递减的窄窗口里队列可能暂时为空，此时临时申请一个页帧，归还时队列已满就直接丢弃。
+ */
+class FrameArena {
+
+    static final int CHUNK_PAGES = 1 << 12; // 32MB 一块
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    FrameArena(int frames) {
+        this.free = new ArrayBlockingQueue<>(frames);
+        int left = frames;
+        while (left > 0) {
+            int n = Math.min(left, CHUNK_PAGES);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(n * PageCache.PAGE_SIZE);
+            for (int i = 0; i < n; i++) {
+                ((Buffer) chunk).limit((i + 1) * PageCache.PAGE_SIZE);
+                ((Buffer) chunk).position(i * PageCache.PAGE_SIZE);
+                free.add(chunk.slice());
+            }
+            left -= n;
+        }
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer frame = free.poll();
+        return frame != null ? frame : ByteBuffer.allocateDirect(PageCache.PAGE_SIZE);
+    }
+
+    void release(ByteBuffer frame) {
+        free.offer(frame);
+    }
+
+    int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,132 @@
+package top.tankenqi.zingdb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.List;
+
+import top.tankenqi.zingdb.backend.dm.page.Page;
+import top.tankenqi.zingdb.backend.utils.Panic;
+
+/**
+ * 基于内存映射的页面缓存，缓存与淘汰策略与 PageCacheImpl 相同，只替换了文件读写：
+ *
+ *   - .db 文件按 SEGMENT_SIZE（8MB）分段映射为 MappedByteBuffer，newPage 越过已映射区域时再映射下一段；
+ *   - 读页从映射区拷贝到页帧，写页把页帧写入映射区，都不经过 FileChannel 系统调用，也不需要 fileLock，
+ *     只有映射新段与截断文件时才需要 fileLock；
+ *   - fsync 即对所有段做 MappedByteBuffer.force()。
+ *
+ * 页面不直接以映射区作为页帧：修改会被操作系统随时写回文件，可能早于对应的日志落盘，
+ * 破坏先写日志的顺序，所以仍然拷贝到 PageCacheImpl 分配的页帧里修改。
+ *
+ * 映射一个段会把文件扩展到段边界，所以文件长度不再等于页数：
+ *   - 正常关闭时把文件截回 pageNumbers 页；
+ *   - 异常退出后文件尾部会多出全 0 的页，但此时 PageOne 校验必然失败，恢复流程会按日志截断。
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    static final int SEGMENT_PAGES = 1 << 10;
+    static final long SEGMENT_SIZE = (long) SEGMENT_PAGES * PAGE_SIZE;
+
+    // 写时复制的段数组，读路径无锁
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        super(file, fileChannel, maxResource);
+    }
+
+    @Override
+    protected void readPages(int fromPgno, ByteBuffer buf) {
+        ByteBuffer dst = buf.duplicate();
+        for (int pgno = fromPgno; dst.hasRemaining(); pgno++) {
+            dst.put(pageView(pgno));
+        }
+    }
+
+    @Override
+    protected void writePage(int pgno, ByteBuffer frame) {
+        pageView(pgno).put(frame.duplicate());
+    }
+
+    @Override
+    protected void writeRun(List<Page> run) {
+        for (Page pg : run) {
+            writePage(pg.getPageNumber(), pg.getBuffer());
+        }
+    }
+
+    @Override
+    protected void readRun(int fromPgno, ByteBuffer[] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            readPage(fromPgno + i, frames[i]);
+        }
+    }
+
+    @Override
+    protected void forceFile() {
+        for (MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+    }
+
+    /**
+     * 截断后，原本映射的段可能越过新的文件末尾，访问会触发 SIGBUS，
+     * 所以全部丢弃，之后按需重新映射（重新映射会把文件再扩展到段边界，这部分不计入页数）
+     */
+    @Override
+    protected void truncateFile(long size) {
+        sync();
+        segments = new MappedByteBuffer[0];
+        super.truncateFile(size);
+    }
+
+    @Override
+    protected void closeFile() {
+        segments = new MappedByteBuffer[0];
+        super.truncateFile(pageOffset(pageNumbers.get() + 1));
+        super.closeFile();
+    }
+
+    /**
+     * 返回一个只覆盖第 pgno 页的独立视图（各线程的 position 互不影响）
+     */
+    private ByteBuffer pageView(int pgno) {
+        long offset = pageOffset(pgno);
+        int idx = (int) (offset / SEGMENT_SIZE);
+        MappedByteBuffer[] segs = segments;
+        if (idx >= segs.length) {
+            segs = mapUpTo(idx);
+        }
+        ByteBuffer view = segs[idx].duplicate();
+        int pos = (int) (offset % SEGMENT_SIZE);
+        ((Buffer) view).position(pos);
+        ((Buffer) view).limit(pos + PAGE_SIZE);
+        return view;
+    }
+
+    private MappedByteBuffer[] mapUpTo(int idx) {
+        fileLock.writeLock().lock();
+        try {
+            MappedByteBuffer[] segs = segments;
+            if (idx < segs.length) {
+                return segs;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segs, idx + 1);
+            for (int i = segs.length; i <= idx; i++) {
+                grown[i] = fc.map(MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = grown;
+            return grown;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+}
@@ -3,7 +3,9 @@ package top.tankenqi.zingdb.backend.dm.pageCache;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 import top.tankenqi.zingdb.backend.dm.page.Page;
 import top.tankenqi.zingdb.backend.utils.Panic;
@@ -27,7 +29,58 @@ public interface PageCache {
 
     void flushPage(Page pg);
 
+    /**
+     * 提示即将顺序读取 [fromPgno, fromPgno + count) 的页，由后台线程异步载入缓存；
+     * 只是提示，立即返回，不增加引用计数，也不保证一定载入
+     */
+    void prefetch(int fromPgno, int count);
+
+    /**
+     * 把 [fromPgno, toPgno] 每一页的内容依次交给 visitor，用于启动时这类只读的全量扫描：
+     * 未缓存的页绕过缓存、按大块顺序读取，由多个线程并行扫描，不占用缓存也不打乱淘汰顺序；
+     * 已缓存的页以缓存中的内容为准。visitor 会被并发调用，传入的 ByteBuffer 只在回调期间有效
+     */
+    void scanPages(int fromPgno, int toPgno, PageVisitor visitor);
+
+    /**
+     * 脏页表：当前缓存中未写回的页（包括已标记 recLSN、还没置脏的页），
+     * 以及已经写回、但上次 sync 之后还没 fsync 的页，页号 -> recLSN；
+     * recLSN 为 0 的页已经修改、但对应的日志还没写（日志一定在此之后）
+     */
+    Map<Integer, Long> dirtyPageTable();
+
+    /**
+     * fsync 数据文件，之前写回的页都已落盘
+     */
+    void sync();
+
+    /**
+     * 设置写回页之前要执行的日志屏障：异步提交的日志可能还在日志缓冲中，
+     * 屏障让已写入的日志先落盘，保证页上的修改不会先于对应的日志写到文件
+     */
+    void setLogFence(Runnable fence);
+
+    /**
+     * 把 recLSN 小于 lsn 的未被引用的脏页写回并 fsync，没有 recLSN 的脏页也一并写回；
+     * 正在被使用的页跳过
+     *
+     * @return 写回的页数
+     */
+    int flushDirtyPages(long lsn);
+
+    @FunctionalInterface
+    interface PageVisitor {
+        void visit(int pgno, ByteBuffer page);
+    }
+
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, false);
+    }
+
+    /**
+     * @param mmap 为 true 时使用内存映射实现（MappedPageCacheImpl）
+     */
+    public static PageCacheImpl create(String path, long memory, boolean mmap) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -48,10 +101,18 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        PageCacheImpl pc = mmap
+                ? new MappedPageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE))
+                : new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE));
+        pc.startWorkers();
+        return pc;
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    public static PageCacheImpl open(String path, long memory, boolean mmap) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -68,6 +129,10 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        PageCacheImpl pc = mmap
+                ? new MappedPageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE))
+                : new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE));
+        pc.startWorkers();
+        return pc;
     }
 }
@@ -2,32 +2,117 @@ package top.tankenqi.zingdb.backend.dm.pageCache;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.tankenqi.zingdb.backend.common.AbstractCache;
 import top.tankenqi.zingdb.backend.dm.page.Page;
 import top.tankenqi.zingdb.backend.dm.page.PageImpl;
 import top.tankenqi.zingdb.backend.utils.Panic;
+import top.tankenqi.zingdb.backend.utils.Props;
 import top.tankenqi.zingdb.common.Error;
 
+/**
+ * 页面缓存：未被引用的页面继续常驻，缓存满时按 2Q + CLOCK 策略淘汰（见 AbstractCache），
+ * 全部页面都被钉住时，未命中最多等待 zingdb.pc.wait.ms 毫秒（默认 1000）再报 CacheFullException
+ *
+ * 刷盘策略：
+ *   - 新建页、淘汰时的写回都不再 fsync，持久性由日志保证（VC 校验失败就会走日志恢复）；
+ *   - 后台 flusher 线程定期收集未被引用的脏页，按页号排序后把连续的页合并成一次
+ *     FileChannel.write(ByteBuffer[])，整批只 fsync 一次；
+ *   - 触发条件：脏页数达到容量的 zingdb.pc.dirty.ratio（默认 0.2），
+ *     或距上次刷盘超过 zingdb.pc.flush.interval.ms 毫秒（默认 1000）；
+ *     脏页数由页面在干净与脏之间切换时维护的计数器给出，只有触发时才扫描缓存；
+ *   - flushPage 仍然同步写入并 fsync，供 PageOne 这类必须立即落盘的页使用；
+ *   - 写回但还没 fsync 的页连同写回时的 recLSN 记在 unsynced 中，直到下一次 sync 完成，
+ *     期间它们仍然出现在脏页表里，检查点不会丢掉重做它们所需的日志。
+ *
+ * 文件读写使用 FileChannel 的定位读写（read(buf, pos) / write(buf, pos)），不依赖通道的共享 position，
+ * 不同页的读写可以并行下发到磁盘。fileLock 是读写锁：普通页读写持读锁，
+ * 只有截断文件与扩展文件（newPage）持写锁。
+ *
+ * 页帧：默认每次载入页面都在堆上分配一个 PAGE_SIZE 的数组；
+ * 设置 zingdb.pc.offheap=true 后改用 FrameArena 预先申请的直接内存页帧，淘汰时回收复用
+ * （需要 -XX:MaxDirectMemorySize 不小于缓存大小）。上层通过 Page.getBuffer() 直接读写页帧，不做拷贝。
+ *
+ * 预读：prefetch 只把页号区间放进队列就返回，由后台 prefetcher 线程跳过已缓存的页，
+ * 为连续未缓存的页先放入加载中的占位项，再合并成一次最多 PREFETCH_RUN 页的分散读，
+ * 读好的页以未引用状态放入试用队列。
+ * 单次提示最多预读容量的 1/4，缓存腾不出位置时放弃，预读不会阻塞也不会挤掉被钉住的页。
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock; // 文件锁，防止多个线程同时访问文件
+    public static final long DEFAULT_WAIT_MS = 1000L;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000L;
+    public static final double DEFAULT_DIRTY_RATIO = 0.2;
+
+    // flusher 检查脏页比例的周期
+    private static final long FLUSH_CHECK_MS = 50L;
+
+    // 一次预读 I/O 最多读取的页数（256KB）
+    static final int PREFETCH_RUN = 32;
+    // 全量扫描时每个线程一次读取的页数（1MB）
+    static final int SCAN_CHUNK = 128;
+    public static final int DEFAULT_SCAN_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // 等待中的预读提示上限，超出的提示直接丢弃
+    private static final int PREFETCH_QUEUE = 64;
+
+    protected RandomAccessFile file;
+    protected FileChannel fc;
+    protected ReadWriteLock fileLock; // 读锁：普通页读写；写锁：截断与扩展文件
+    private Lock runLock; // 向量读写依赖通道 position，flusher 与 prefetcher 之间互斥
 
     // 记录当前打开的数据库文件的页面数量，AtomicInteger是原子操作，线程安全的
-    private AtomicInteger pageNumbers;
+    protected AtomicInteger pageNumbers;
+
+    private final int maxResource;
+    private final long flushIntervalMs;
+    private final double dirtyRatio;
+    private final Thread flusher;
+    private volatile boolean closed;
+    private final FrameArena arena; // 为 null 时使用堆内页帧
+    private final BlockingQueue<int[]> prefetchQueue; // 待预读的 [fromPgno, count]
+    private final Thread prefetcher;
+    private final AtomicInteger truncations; // 截断次数，预读据此发现读到的页已经失效
+    private final AtomicInteger dirtyPages; // 缓存中的脏页数
+    private final int scanThreads;
+    private volatile Runnable logFence = () -> {}; // 写回页之前调用，见 setLogFence
+    private final Map<Integer, Unsynced> unsynced; // 写回后尚未 fsync 的页
+    private final AtomicLong syncEpoch; // sync 的轮次
+
+    /**
+     * 一次尚未 fsync 的写回：写回时页的 recLSN，以及写回完成时的 sync 轮次
+     */
+    private static final class Unsynced {
+        final long recLsn;
+        final long epoch;
+
+        Unsynced(long recLsn, long epoch) {
+            this.recLsn = recLsn;
+            this.epoch = epoch;
+        }
+    }
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        super(maxResource, true, Props.readLong("zingdb.pc.wait.ms", DEFAULT_WAIT_MS));
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -39,16 +124,45 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
+        this.fileLock = new ReentrantReadWriteLock();
+        this.runLock = new ReentrantLock();
         // 根据文件大小计算出页面数量
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.maxResource = maxResource;
+        this.flushIntervalMs = Props.readLong("zingdb.pc.flush.interval.ms", DEFAULT_FLUSH_INTERVAL_MS);
+        this.dirtyRatio = Props.readDouble("zingdb.pc.dirty.ratio", DEFAULT_DIRTY_RATIO);
+        this.flusher = new Thread(this::flushLoop, "zingdb-pc-flusher");
+        this.flusher.setDaemon(true);
+        this.arena = Boolean.getBoolean("zingdb.pc.offheap") ? new FrameArena(maxResource) : null;
+        this.prefetchQueue = new LinkedBlockingQueue<>(PREFETCH_QUEUE);
+        this.prefetcher = new Thread(this::prefetchLoop, "zingdb-pc-prefetcher");
+        this.prefetcher.setDaemon(true);
+        this.truncations = new AtomicInteger(0);
+        this.dirtyPages = new AtomicInteger(0);
+        this.unsynced = new ConcurrentHashMap<>();
+        this.syncEpoch = new AtomicLong(0);
+        this.scanThreads = (int) Math.max(1L, Props.readLong("zingdb.pc.scan.threads", DEFAULT_SCAN_THREADS));
+    }
+
+    /**
+     * 启动后台 flusher 与 prefetcher，由 PageCache.create / open 在构造完成后调用，
+     * 避免子类字段尚未初始化时后台线程就开始工作
+     */
+    void startWorkers() {
+        flusher.start();
+        prefetcher.start();
     }
 
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg); // 新建的页面需要立即写入磁盘
-        return pgno;
+        // 扩展文件，与截断互斥
+        fileLock.writeLock().lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            writePage(pgno, ByteBuffer.wrap(initData)); // 新建的页面需要立即写入文件，但不需要 fsync
+            return pgno;
+        } finally {
+            fileLock.writeLock().unlock();
+        }
     }
 
     public Page getPage(int pgno) throws Exception {
@@ -61,26 +175,63 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+        ByteBuffer frame = newFrame();
+        readPage(pgno, frame);
+        return new PageImpl(pgno, frame, this, dirtyPages);
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+    private ByteBuffer newFrame() {
+        return arena != null ? arena.acquire() : ByteBuffer.allocate(PAGE_SIZE);
+    }
+
+    /**
+     * 从文件中读取一页的内容到页帧 frame
+     */
+    protected void readPage(int pgno, ByteBuffer frame) {
+        readPages(pgno, frame.duplicate());
+    }
+
+    /**
+     * 从 fromPgno 开始把连续的页定位读入 buf 的 [position, limit)，不依赖通道 position，可以并发调用
+     */
+    protected void readPages(int fromPgno, ByteBuffer buf) {
+        long offset = pageOffset(fromPgno) - buf.position();
+
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    // 超出文件末尾的部分视为全 0，复用的页帧里还留着旧数据，需要显式清零
+                    while (buf.hasRemaining()) {
+                        buf.put((byte) 0);
+                    }
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
     }
 
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
+            logFence.run();
+            writePage(pg.getPageNumber(), pg.getBuffer());
+            written(pg);
             pg.setDirty(false);
         }
+        recycle(pg);
+    }
+
+    /**
+     * 页面离开缓存后归还页帧
+     */
+    private void recycle(Page pg) {
+        if (arena != null) {
+            arena.release(pg.getBuffer());
+        }
     }
 
     public void release(Page page) {
@@ -88,43 +239,428 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     public void flushPage(Page pg) {
-        flush(pg);
+        logFence.run();
+        writePage(pg.getPageNumber(), pg.getBuffer());
+        sync();
     }
 
     /**
-     * 将页面写入磁盘
-     * @param pg
+     * 将页面写入文件（不 fsync）
      */
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
+    protected void writePage(int pgno, ByteBuffer frame) {
         long offset = pageOffset(pgno);
 
-        fileLock.lock();
+        fileLock.readLock().lock();
+        try {
+            ByteBuffer buf = frame.duplicate();
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * fsync 之前开始新的一轮，fsync 完成后去掉之前轮次的写回记录：
+     * 它们在 fsync 开始前就已经写完，一定落盘了
+     */
+    @Override
+    public void sync() {
+        long epoch = syncEpoch.incrementAndGet();
+        forceFile();
+        for (Map.Entry<Integer, Unsynced> e : unsynced.entrySet()) {
+            if (e.getValue().epoch < epoch) {
+                unsynced.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    protected void forceFile() {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    /**
+     * 记录一次写回，必须在清除脏标记之前调用，这样收集脏页表时先看缓存、再看 unsynced 就不会漏掉它
+     */
+    private void written(Page pg) {
+        Unsynced w = new Unsynced(pg.getRecLsn(), syncEpoch.get());
+        unsynced.merge(pg.getPageNumber(), w, (a, b) -> new Unsynced(minLsn(a.recLsn, b.recLsn), b.epoch));
+    }
+
+    /**
+     * 两个 recLSN 中较小的一个，0 表示没有对应的日志
+     */
+    private static long minLsn(long a, long b) {
+        if (a == 0 || b == 0) {
+            return a + b;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * flusher 线程主循环：按脏页比例或时间间隔触发一次批量刷盘
+     */
+    private void flushLoop() {
+        long lastFlush = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                Thread.sleep(Math.min(FLUSH_CHECK_MS, Math.max(1L, flushIntervalMs)));
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (closed) {
+                break;
+            }
+            int dirty = dirtyPages.get();
+            if (dirty <= 0) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (dirty >= maxResource * dirtyRatio || now - lastFlush >= flushIntervalMs) {
+                flushDirtyPages();
+                lastFlush = now;
+            }
+        }
+    }
+
+    int flushDirtyPages() {
+        return flushDirtyPages(Long.MAX_VALUE);
+    }
+
+    int dirtyPageCount() {
+        return dirtyPages.get();
+    }
+
+    @Override
+    public void setLogFence(Runnable fence) {
+        this.logFence = fence;
+    }
+
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        Map<Integer, Long> dpt = new HashMap<>();
+        for (long key : cachedKeys()) {
+            Page pg = peek(key);
+            // 已标记 recLSN 的页即使还没置脏也要算进去：日志已经写了，页的修改还没做
+            if (pg != null && (pg.isDirty() || pg.getRecLsn() > 0)) {
+                dpt.put(pg.getPageNumber(), pg.getRecLsn());
+            }
+        }
+        for (Map.Entry<Integer, Unsynced> e : unsynced.entrySet()) {
+            dpt.merge(e.getKey(), e.getValue().recLsn, PageCacheImpl::minLsn);
+        }
+        return dpt;
+    }
+
+    /**
+     * 把当前未被引用、recLSN 小于 lsn 的脏页批量写回：
+     * 独占这些页（期间其他线程的 getPage 会等待），按页号排序，
+     * 连续的页合并成一次向量写，全部写完后解除独占，最后整批 fsync 一次
+     *
+     * @return 写回的页数
+     */
+    @Override
+    public int flushDirtyPages(long lsn) {
+        List<Long> keys = new ArrayList<>();
+        for (long key : cachedKeys()) {
+            Page pg = peek(key);
+            if (pg != null && pg.isDirty() && pg.getRecLsn() < lsn) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+
+        List<Page> held = new ArrayList<>();
+        for (long key : keys) {
+            Page pg = tryLockIdle(key);
+            if (pg == null) {
+                continue; // 正在被使用的页留给下一轮或淘汰时写回
+            }
+            if (!pg.isDirty()) {
+                unlockIdle(key);
+                continue;
+            }
+            held.add(pg);
+        }
+        if (held.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            logFence.run();
+            int i = 0;
+            while (i < held.size()) {
+                int j = i + 1;
+                while (j < held.size()
+                        && held.get(j).getPageNumber() == held.get(j - 1).getPageNumber() + 1) {
+                    j++;
+                }
+                writeRun(held.subList(i, j));
+                i = j;
+            }
+        } finally {
+            for (Page pg : held) {
+                written(pg);
+                pg.setDirty(false);
+                unlockIdle(pg.getPageNumber());
+            }
+        }
+        sync();
+        return held.size();
+    }
+
+    /**
+     * 一组页号连续的页，一次向量写入
+     */
+    protected void writeRun(List<Page> run) {
+        ByteBuffer[] bufs = new ByteBuffer[run.size()];
+        for (int k = 0; k < bufs.length; k++) {
+            bufs[k] = run.get(k).getBuffer().duplicate();
+        }
+        fileLock.readLock().lock();
+        runLock.lock();
+        try {
+            fc.position(pageOffset(run.get(0).getPageNumber()));
+            long remaining = (long) bufs.length * PAGE_SIZE;
+            while (remaining > 0) {
+                remaining -= fc.write(bufs);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
         } finally {
-            fileLock.unlock();
+            runLock.unlock();
+            fileLock.readLock().unlock();
+        }
+    }
+
+    public void prefetch(int fromPgno, int count) {
+        if (count > 0 && !closed) {
+            prefetchQueue.offer(new int[] { fromPgno, count }); // 队列满时丢弃提示
+        }
+    }
+
+    private void prefetchLoop() {
+        while (!closed) {
+            int[] hint;
+            try {
+                hint = prefetchQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                prefetchPages(hint[0], hint[1]);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 预读 [fromPgno, fromPgno + count) 中尚未缓存的页
+     *
+     * @return 实际放入缓存的页数
+     */
+    int prefetchPages(int fromPgno, int count) throws InterruptedException {
+        int first = Math.max(fromPgno, 1);
+        int last = Math.min(first + Math.min(count, Math.max(maxResource / 4, 1)) - 1, pageNumbers.get());
+        int loaded = 0;
+        int pgno = first;
+        while (pgno <= last && !closed) {
+            if (contains(pgno)) {
+                pgno++;
+                continue;
+            }
+            int end = pgno;
+            while (end < last && end - pgno + 1 < PREFETCH_RUN && !contains(end + 1)) {
+                end++;
+            }
+            loaded += readAhead(pgno, end - pgno + 1);
+            pgno = end + 1;
+        }
+        return loaded;
+    }
+
+    /**
+     * 先为每一页放入加载中的占位项再读文件：读的过程中其他线程访问这些页会等待预读结果，
+     * 不会自己载入、修改并写回，所以读到的内容不会比文件中的旧
+     */
+    private int readAhead(int fromPgno, int n) throws InterruptedException {
+        int epoch = truncations.get();
+        boolean[] reserved = new boolean[n];
+        int loaded = 0;
+        for (int i = 0; i < n; i++) {
+            reserved[i] = reserveOffer(fromPgno + i);
+            if (reserved[i]) {
+                loaded++;
+            }
+        }
+        if (loaded == 0) {
+            return 0;
+        }
+        ByteBuffer[] frames = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            frames[i] = newFrame();
+        }
+        readRun(fromPgno, frames);
+
+        for (int i = 0; i < n; i++) {
+            Page pg = new PageImpl(fromPgno + i, frames[i], this, dirtyPages);
+            if (reserved[i]) {
+                completeOffer(fromPgno + i, pg);
+            } else {
+                recycle(pg);
+            }
+        }
+        if (truncations.get() != epoch) {
+            // 读的过程中文件被截断，放进去的页可能已经越界，全部丢弃（都是未修改的干净页）
+            for (int i = 0; i < n; i++) {
+                Page pg = discard(fromPgno + i);
+                if (pg != null) {
+                    recycle(pg);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 从 fromPgno 开始把连续的页一次分散读入 frames，超出文件末尾的部分视为全 0
+     */
+    protected void readRun(int fromPgno, ByteBuffer[] frames) {
+        ByteBuffer[] bufs = new ByteBuffer[frames.length];
+        for (int k = 0; k < bufs.length; k++) {
+            bufs[k] = frames[k].duplicate();
+        }
+        fileLock.readLock().lock();
+        runLock.lock();
+        try {
+            fc.position(pageOffset(fromPgno));
+            long remaining = (long) bufs.length * PAGE_SIZE;
+            while (remaining > 0) {
+                long r = fc.read(bufs);
+                if (r < 0) {
+                    break;
+                }
+                remaining -= r;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            runLock.unlock();
+            fileLock.readLock().unlock();
+        }
+        for (ByteBuffer buf : bufs) {
+            while (buf.hasRemaining()) {
+                buf.put((byte) 0);
+            }
+        }
+    }
+
+    public void scanPages(int fromPgno, int toPgno, PageVisitor visitor) {
+        int first = Math.max(fromPgno, 1);
+        int last = Math.min(toPgno, pageNumbers.get());
+        if (first > last) {
+            return;
+        }
+        int chunks = (last - first) / SCAN_CHUNK + 1;
+        AtomicInteger next = new AtomicInteger(0);
+        Runnable worker = () -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(SCAN_CHUNK * PAGE_SIZE);
+            int c;
+            while ((c = next.getAndIncrement()) < chunks) {
+                int from = first + c * SCAN_CHUNK;
+                scanChunk(from, Math.min(SCAN_CHUNK, last - from + 1), buf, visitor);
+            }
+        };
+
+        Thread[] helpers = new Thread[Math.min(scanThreads, chunks) - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, "zingdb-pc-scanner-" + i);
+            helpers[i].start();
+        }
+        worker.run();
+        for (Thread t : helpers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void scanChunk(int fromPgno, int n, ByteBuffer buf, PageVisitor visitor) {
+        ((Buffer) buf).clear();
+        ((Buffer) buf).limit(n * PAGE_SIZE);
+        readPages(fromPgno, buf);
+        for (int i = 0; i < n; i++) {
+            int pgno = fromPgno + i;
+            Page cached = peek(pgno);
+            if (cached != null) {
+                // 缓存中的页可能比文件更新（如恢复后尚未写回的脏页）
+                visitor.visit(pgno, cached.getBuffer());
+                continue;
+            }
+            ByteBuffer page = buf.duplicate();
+            ((Buffer) page).limit((i + 1) * PAGE_SIZE);
+            ((Buffer) page).position(i * PAGE_SIZE);
+            visitor.visit(pgno, page.slice());
         }
     }
 
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        truncations.incrementAndGet();
+        // 截断后越界的页不再有效，不能再被写回
+        for (long key : cachedKeys()) {
+            if (key > maxPgno) {
+                Page pg = discard(key);
+                if (pg != null) {
+                    pg.setDirty(false);
+                    recycle(pg);
+                }
+            }
+        }
+        unsynced.keySet().removeIf(pgno -> pgno > maxPgno);
+        fileLock.writeLock().lock();
+        try {
+            truncateFile(pageOffset(maxPgno + 1));
+            pageNumbers.set(maxPgno);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    protected void truncateFile(long size) {
         try {
             file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close() {
+        closed = true;
+        flusher.interrupt();
+        prefetcher.interrupt();
+        try {
+            flusher.join();
+            prefetcher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
+        sync();
+        closeFile();
+    }
+
+    protected void closeFile() {
         try {
             fc.close();
             file.close();
@@ -137,8 +673,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    protected static long pageOffset(int pgno) {
+        return (long) (pgno - 1) * PAGE_SIZE;
     }
 
 }
@@ -0,0 +1,268 @@
+package top.tankenqi.zingdb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.utils.Panic;
+import top.tankenqi.zingdb.common.Error;
+
+/**
+ * 持久化的空闲空间表（Free Space Map），保存在与 .db 同名的 .fsm 文件中
+ *
+ * 文件结构：
+ * [Header 块] [FSM 块 0] [FSM 块 1] ...
+ * 每块 PAGE_SIZE 字节，Header 块只有 [Magic 4]；FSM 块中每页占 1 字节，第 pgno 页的记录位于 BLOCK_SIZE + pgno
+ *
+ * 每页的记录：
+ *   - 0 表示未知（还没有记录过，或上次落盘之后才新建的页），启动时需要读页确认；
+ *   - 1..255 表示空闲空间至少为 (v - 1) * GRANULE 字节。
+ *
+ * 落盘策略：修改只改内存并标记所在块为脏，由 DataManager 按新建页的节奏、以及关闭时批量写回，不写日志。
+ * 页面的空闲空间只会减少，所以异常退出后表中的值只可能偏大，插入前以页面上的 FSO 为准并顺手纠正，
+ * 不会因为表过期而写坏数据；偏小的情况只可能是未知记录，已经在启动时处理。
+ */
+public class FreeSpaceMap {
+
+    public static final String FSM_SUFFIX = ".fsm";
+
+    static final int BLOCK_SIZE = PageCache.PAGE_SIZE;
+    private static final int MAX_LEVEL = 255;
+    // 记录的粒度，254 级刚好覆盖一整页
+    public static final int GRANULE = (PageCache.PAGE_SIZE + MAX_LEVEL - 2) / (MAX_LEVEL - 1);
+    private static final int MAGIC = 0x5a46534d; // "ZFSM"
+
+    private final RandomAccessFile file; // 为 null 时只在内存中维护
+    private final FileChannel fc;
+    private final ReadWriteLock lock; // 读锁：读写单页记录；写锁：扩容
+    private final Lock flushLock;
+    private final Set<Integer> dirtyBlocks;
+    private byte[] map;
+
+    private FreeSpaceMap(RandomAccessFile file, FileChannel fc, byte[] map) {
+        this.file = file;
+        this.fc = fc;
+        this.lock = new ReentrantReadWriteLock();
+        this.flushLock = new ReentrantLock();
+        this.dirtyBlocks = ConcurrentHashMap.newKeySet();
+        this.map = map;
+    }
+
+    public static FreeSpaceMap inMemory() {
+        return new FreeSpaceMap(null, null, new byte[BLOCK_SIZE]);
+    }
+
+    public static FreeSpaceMap create(String path) {
+        new File(path + FSM_SUFFIX).delete(); // 同名旧库残留的文件
+        return open(path);
+    }
+
+    /**
+     * 打开空闲空间表，文件不存在（旧版本创建的库）时新建一个空表，所有页都视为未知
+     */
+    public static FreeSpaceMap open(String path) {
+        File f = new File(path + FSM_SUFFIX);
+        RandomAccessFile raf = null;
+        FileChannel fc = null;
+        byte[] map = new byte[BLOCK_SIZE];
+        try {
+            boolean exists = f.exists();
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+            if (exists && raf.length() >= BLOCK_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                fc.read(header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    Panic.panic(Error.BadFsmFileException);
+                }
+                long blocks = (raf.length() - 1) / BLOCK_SIZE;
+                map = new byte[(int) Math.max(1, blocks) * BLOCK_SIZE];
+                ByteBuffer buf = ByteBuffer.wrap(map);
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, BLOCK_SIZE + buf.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        FreeSpaceMap fsm = new FreeSpaceMap(raf, fc, map);
+        if (fsm.length() == 0) {
+            fsm.writeHeader();
+        }
+        return fsm;
+    }
+
+    /**
+     * 记录第 pgno 页的空闲空间（向下取整到 GRANULE）
+     */
+    public void set(int pgno, int freeSpace) {
+        int level = Math.min(freeSpace / GRANULE, MAX_LEVEL - 1) + 1;
+        if (pgno >= capacity()) {
+            grow(pgno);
+        }
+        lock.readLock().lock();
+        try {
+            if (map[pgno] != (byte) level) {
+                map[pgno] = (byte) level;
+                dirtyBlocks.add(pgno / BLOCK_SIZE);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 第 pgno 页空闲空间的下界；未知时返回 -1
+     */
+    public int get(int pgno) {
+        lock.readLock().lock();
+        try {
+            if (pgno >= map.length || map[pgno] == 0) {
+                return -1;
+            }
+            return ((map[pgno] & 0xFF) - 1) * GRANULE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * [fromPgno, toPgno] 中记录为未知的页，按连续区间返回 [起始页号, 结束页号]
+     */
+    public List<int[]> unknownRanges(int fromPgno, int toPgno) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1;
+        for (int pgno = fromPgno; pgno <= toPgno; pgno++) {
+            boolean unknown = get(pgno) < 0;
+            if (unknown && start < 0) {
+                start = pgno;
+            } else if (!unknown && start >= 0) {
+                ranges.add(new int[] { start, pgno - 1 });
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            ranges.add(new int[] { start, toPgno });
+        }
+        return ranges;
+    }
+
+    /**
+     * 把脏块写回并 fsync；已有其他线程在写回时直接返回
+     */
+    public void flush() {
+        if (fc == null || dirtyBlocks.isEmpty() || !flushLock.tryLock()) {
+            return;
+        }
+        try {
+            writeDirtyBlocks();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void writeDirtyBlocks() {
+        try {
+            List<Integer> blocks = new ArrayList<>(dirtyBlocks);
+            for (int b : blocks) {
+                dirtyBlocks.remove(b);
+                byte[] block;
+                lock.readLock().lock();
+                try {
+                    block = Arrays.copyOfRange(map, b * BLOCK_SIZE, (b + 1) * BLOCK_SIZE);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                ByteBuffer buf = ByteBuffer.wrap(block);
+                long offset = (long) (b + 1) * BLOCK_SIZE;
+                while (buf.hasRemaining()) {
+                    fc.write(buf, offset + buf.position());
+                }
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public boolean isDirty() {
+        return !dirtyBlocks.isEmpty();
+    }
+
+    public void close() {
+        if (fc == null) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            writeDirtyBlocks();
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private int capacity() {
+        lock.readLock().lock();
+        try {
+            return map.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void grow(int pgno) {
+        lock.writeLock().lock();
+        try {
+            if (pgno < map.length) {
+                return;
+            }
+            int blocks = pgno / BLOCK_SIZE + 1;
+            map = Arrays.copyOf(map, Math.max(blocks, map.length / BLOCK_SIZE * 2) * BLOCK_SIZE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long length() {
+        try {
+            return file == null ? 0 : file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    private void writeHeader() {
+        if (fc == null) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+        header.putInt(0, MAGIC);
+        try {
+            while (header.hasRemaining()) {
+                fc.write(header, header.position());
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,66 +1,118 @@
 package top.tankenqi.zingdb.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 
+/**
+ * 按空闲空间分桶的页索引，负责为插入挑选页面
+ *
+ * 每个桶是一个无锁队列，select 从能容纳目标大小的最小桶开始 poll，poll 成功即认领了该页，
+ * 在 add 放回之前其他线程选不到它，同一页不会被并发插入。
+ *
+ * 桶按线程分成若干条带（stripe），线程按 id 固定对应一条：add 放回自己的条带，
+ * select 先在自己的条带里找，找不到再去其他条带取。插入线程因此大多在各自的页上写，
+ * 不会都挤在同一个桶头上竞争，也更容易命中自己刚用过、还在缓存里的页。
+ *
+ * 每页的空闲空间同时记录在 FreeSpaceMap 中：页被 select 拿走期间虽然不在任何桶里，
+ * 它的记录仍然保留，关闭或落盘时不会丢失。
+ */
 public class PageIndex {
 
     private static final int INTERVALS_NO = 40; // 将一页划成40个区间
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    // lists[i] 存储空闲空间在 [i*THRESHOLD, (i+1)*THRESHOLD) 范围内的页
-    private List<PageInfo>[] lists;
+    private static final int STRIPES = stripes();
+
+    // lists[s][i] 存储第 s 条带中空闲空间在 [i*THRESHOLD, (i+1)*THRESHOLD) 范围内的页
+    private Queue<PageInfo>[][] lists;
+    private FreeSpaceMap fsm;
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
-        for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+        this(FreeSpaceMap.inMemory());
+    }
+
+    @SuppressWarnings("unchecked")
+    public PageIndex(FreeSpaceMap fsm) {
+        this.fsm = fsm;
+        lists = new Queue[STRIPES][INTERVALS_NO + 1];
+        for (int s = 0; s < STRIPES; s++) {
+            for (int i = 0; i < INTERVALS_NO + 1; i++) {
+                lists[s][i] = new ConcurrentLinkedQueue<>();
+            }
         }
     }
 
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            // 在上层模块使用完这个页面后，需要将其重新插入 PageIndex
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        fsm.set(pgno, freeSpace);
+        // 在上层模块使用完这个页面后，需要将其重新插入 PageIndex
+        offer(stripe(), pgno, freeSpace);
+    }
+
+    /**
+     * 按 FreeSpaceMap 中的记录把 [fromPgno, toPgno] 放入各桶，记录未知的页跳过；
+     * 启动时由单个线程载入，按页号轮流分到各条带
+     */
+    public void load(int fromPgno, int toPgno) {
+        for (int pgno = fromPgno; pgno <= toPgno; pgno++) {
+            int freeSpace = fsm.get(pgno);
+            if (freeSpace >= 0) {
+                offer(pgno % STRIPES, pgno, freeSpace);
+            }
         }
     }
 
-    public PageInfo select(int spaceSize) {
-        lock.lock();
+    private void offer(int stripe, int pgno, int freeSpace) {
+        lists[stripe][freeSpace / THRESHOLD].offer(new PageInfo(pgno, freeSpace));
+    }
 
+    public PageInfo select(int spaceSize) {
         /**
-         * 从能容纳目标大小的最小区间开始查找，找到就移除并返回
+         * 从能容纳目标大小的最小区间开始查找，先找自己的条带，再依次找其他条带
          */
-        try {
-            int number = spaceSize / THRESHOLD;
-            if (number < INTERVALS_NO)
-                number++;
-            while (number <= INTERVALS_NO) {
-                if (lists[number].size() == 0) {
-                    number++;
-                    continue;
-                }
-                /**
-                 * 被选择的页，会直接从 PageIndex 中移除，
-                 * 这意味着，同一个页面是不允许并发写的
-                 */
-                return lists[number].remove(0);
+        int number = spaceSize / THRESHOLD;
+        if (number < INTERVALS_NO)
+            number++;
+        int own = stripe();
+        for (int k = 0; k < STRIPES; k++) {
+            PageInfo pi = select((own + k) % STRIPES, number);
+            if (pi != null) {
+                return pi;
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
+        return null;
+    }
+
+    private PageInfo select(int stripe, int number) {
+        while (number <= INTERVALS_NO) {
+            /**
+             * 被选择的页，会直接从桶中移除，
+             * 这意味着，同一个页面是不允许并发写的
+             */
+            PageInfo pi = lists[stripe][number].poll();
+            if (pi != null) {
+                return pi;
+            }
+            number++;
+        }
+        return null;
+    }
+
+    public FreeSpaceMap getFreeSpaceMap() {
+        return fsm;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() % STRIPES);
+    }
+
+    private static int stripes() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        return n;
     }
 
 }
@@ -1,13 +1,11 @@
 package top.tankenqi.zingdb.backend.im;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import top.tankenqi.zingdb.backend.common.SubArray;
 import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
 import top.tankenqi.zingdb.backend.tm.TransactionManagerImpl;
-import top.tankenqi.zingdb.backend.utils.Parser;
 
 /**
  * Node结构如下：
@@ -30,63 +28,60 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.put(IS_LEAF_OFFSET, (byte)1);
         } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
+            raw.put(IS_LEAF_OFFSET, (byte)0);
         }
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return raw.get(IS_LEAF_OFFSET) == (byte)1;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        raw.putShort(NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)raw.getShort(NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        raw.putLong(SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return raw.getLong(SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        int offset = NODE_HEADER_SIZE+kth*(8*2);
+        raw.putLong(offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        int offset = NODE_HEADER_SIZE+kth*(8*2);
+        return raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        int offset = NODE_HEADER_SIZE+kth*(8*2)+8;
+        raw.putLong(offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        int offset = NODE_HEADER_SIZE+kth*(8*2)+8;
+        return raw.getLong(offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
+        int offset = NODE_HEADER_SIZE+kth*(8*2);
+        from.copyTo(offset, to, NODE_HEADER_SIZE, from.length()-offset);
     }
 
     static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
-        }
+        int begin = NODE_HEADER_SIZE+(kth+1)*(8*2);
+        raw.move(begin-(8*2), begin, NODE_SIZE-begin);
     }
 
     static byte[] newRootRaw(long left, long right, long key)  {
@@ -100,7 +95,7 @@ public class Node {
         setRawKthSon(raw, right, 1);
         setRawKthKey(raw, Long.MAX_VALUE, 1);
 
-        return raw.raw;
+        return raw.toBytes();
     }
 
     static byte[] newNilRootRaw()  {
@@ -110,7 +105,7 @@ public class Node {
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
 
-        return raw.raw;
+        return raw.toBytes();
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -232,9 +227,9 @@ public class Node {
                 long iSon = getRawKthSon(raw, i);
                 if (iSon == uid) {
                     // 把 [i+1..noKeys-1] 向前挪一格
-                    int begin = raw.start + NODE_HEADER_SIZE + i * (8 * 2);
-                    int end = raw.start + NODE_HEADER_SIZE + noKeys * (8 * 2);
-                    System.arraycopy(raw.raw, begin + (8 * 2), raw.raw, begin, end - begin - (8 * 2));
+                    int begin = NODE_HEADER_SIZE + i * (8 * 2);
+                    int end = NODE_HEADER_SIZE + noKeys * (8 * 2);
+                    raw.move(begin + (8 * 2), begin, end - begin - (8 * 2));
                     setRawNoKeys(raw, noKeys - 1);
                     changed = true;
                     break;
@@ -333,7 +328,7 @@ public class Node {
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.toBytes());
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
 
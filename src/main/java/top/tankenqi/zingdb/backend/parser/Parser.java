@@ -22,6 +22,7 @@ import top.tankenqi.zingdb.backend.parser.statement.Literal;
 import top.tankenqi.zingdb.backend.parser.statement.LogicalExpr;
 import top.tankenqi.zingdb.backend.parser.statement.OrderItem;
 import top.tankenqi.zingdb.backend.parser.statement.Select;
+import top.tankenqi.zingdb.backend.parser.statement.Set;
 import top.tankenqi.zingdb.backend.parser.statement.Show;
 import top.tankenqi.zingdb.backend.parser.statement.SingleExpression;
 import top.tankenqi.zingdb.backend.parser.statement.Stats;
@@ -34,11 +35,12 @@ import top.tankenqi.zingdb.common.Error;
  *
  * 语法摘要（关键字大小写不敏感）：
  *
- *   stmt := begin | commit | abort
+ *   stmt := begin | commit | abort | set
  *         | create_table | drop_table | desc
  *         | select | insert | delete | update
  *         | show
  *
+ *   set    := SET ident (= | TO) value
  *   select := SELECT (* | COUNT '(' '*' ')' | field_list) FROM ident [where] [order_by] [limit]
  *   where  := WHERE expr_or
  *   expr_or  := expr_and (OR expr_and)*
@@ -70,6 +72,7 @@ public class Parser {
                 case "begin":  stat = parseBegin(tk); break;
                 case "commit": stat = parseCommit(tk); break;
                 case "abort":  stat = parseAbort(tk); break;
+                case "set":    stat = parseSet(tk); break;
                 case "create": stat = parseCreate(tk); break;
                 case "drop":   stat = parseDrop(tk); break;
                 case "select": stat = parseSelect(tk); break;
@@ -364,6 +367,22 @@ public class Parser {
     private static Commit parseCommit(Tokenizer tk) { return new Commit(); }
     private static Abort parseAbort(Tokenizer tk) { return new Abort(); }
 
+    private static Set parseSet(Tokenizer tk) throws Exception {
+        String name = tk.peek();
+        if (!isName(name)) throw Error.InvalidCommandException;
+        tk.pop();
+        String op = lower(tk.peek());
+        if (!"=".equals(op) && !"to".equals(op)) throw Error.InvalidCommandException;
+        tk.pop();
+        String value = tk.peek();
+        if ("".equals(value) || ";".equals(value)) throw Error.InvalidCommandException;
+        tk.pop();
+        Set set = new Set();
+        set.name = lower(name);
+        set.value = lower(value);
+        return set;
+    }
+
     // ===================== Expressions =====================
 
     private static Expr parseExprOr(Tokenizer tk) throws Exception {
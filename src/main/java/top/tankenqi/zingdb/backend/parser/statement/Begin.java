@@ -2,4 +2,5 @@ package top.tankenqi.zingdb.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean asyncCommit; // 由会话的 synchronous_commit 设置决定，不来自 SQL
 }
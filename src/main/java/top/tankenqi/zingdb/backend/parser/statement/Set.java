@@ -0,0 +1,6 @@
+package top.tankenqi.zingdb.backend.parser.statement;
+
+public class Set {
+    public String name;
+    public String value;
+}
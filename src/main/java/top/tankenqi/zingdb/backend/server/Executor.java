@@ -13,6 +13,7 @@ import top.tankenqi.zingdb.backend.parser.statement.Desc;
 import top.tankenqi.zingdb.backend.parser.statement.Drop;
 import top.tankenqi.zingdb.backend.parser.statement.Insert;
 import top.tankenqi.zingdb.backend.parser.statement.Select;
+import top.tankenqi.zingdb.backend.parser.statement.Set;
 import top.tankenqi.zingdb.backend.parser.statement.Show;
 import top.tankenqi.zingdb.backend.parser.statement.Stats;
 import top.tankenqi.zingdb.backend.parser.statement.Update;
@@ -28,12 +29,16 @@ import top.tankenqi.zingdb.transport.ResultSet;
  * 解析并执行一条 SQL，返回结构化 Package（OK / RESULT_SET / ERROR）。
  *
  * 每个 Executor 实例对应一个客户端连接，持有该连接当前的事务 xid。
+ *
+ * SET synchronous_commit = off 之后，该连接新开始的事务使用异步提交（见 DataManager.asyncCommit）：
+ * COMMIT 不等日志与提交状态落盘就返回，崩溃时最多丢失最近 zingdb.commit.async.delay.ms 毫秒内的提交。
  */
 public class Executor {
 
     private static final Logger log = LoggerFactory.getLogger(Executor.class);
 
     private long xid;
+    private boolean asyncCommit;
     final TableManager tbm;
 
     public Executor(TableManager tbm) {
@@ -61,6 +66,7 @@ public class Executor {
             Object stat = Parser.Parse(sql.getBytes());
             if (stat instanceof Begin) {
                 if (xid != 0) throw Error.NestedTransactionException;
+                ((Begin) stat).asyncCommit = asyncCommit;
                 BeginRes r = tbm.begin((Begin) stat);
                 xid = r.xid;
                 result = Package.ok("begin", 0);
@@ -74,6 +80,9 @@ public class Executor {
                 tbm.abort(xid);
                 xid = 0;
                 result = Package.ok("abort", 0);
+            } else if (stat instanceof Set) {
+                set((Set) stat);
+                result = Package.ok("set", 0);
             } else {
                 result = execDML(stat);
             }
@@ -94,7 +103,9 @@ public class Executor {
         Exception suppressed = null;
         if (xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            Begin begin = new Begin();
+            begin.asyncCommit = asyncCommit;
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
@@ -144,6 +155,18 @@ public class Executor {
         }
     }
 
+    /**
+     * 会话设置，目前只支持 synchronous_commit = on | off，对之后开始的事务生效
+     */
+    private void set(Set set) throws Exception {
+        if (!"synchronous_commit".equals(set.name)) throw Error.InvalidCommandException;
+        switch (set.value) {
+            case "on": case "true": case "1": asyncCommit = false; break;
+            case "off": case "false": case "0": asyncCommit = true; break;
+            default: throw Error.InvalidCommandException;
+        }
+    }
+
     private static long parseTrailingCount(byte[] msg, String prefix) {
         String s = new String(msg);
         if (s.startsWith(prefix)) {
@@ -230,6 +230,8 @@ public class Table {
 
         // 2. 候选 uid + 过滤 + 收集 entry
         List<Long> uids = resolveCandidates(select.expr);
+        // 候选行较多时（如全表扫描）提前把它们所在的页交给后台预读
+        ((TableManagerImpl) tbm).dm.prefetch(uids);
         ExprEvaluator ev = new ExprEvaluator(fields);
         List<Map<String, Object>> filtered = new ArrayList<>();
         for (Long uid : uids) {
@@ -119,7 +119,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead ? 1 : 0;
-        res.xid = vm.begin(level);
+        res.xid = vm.begin(level, begin.asyncCommit);
         res.result = "begin".getBytes();
         return res;
     }
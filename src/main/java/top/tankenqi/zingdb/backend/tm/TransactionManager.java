@@ -13,10 +13,24 @@ import top.tankenqi.zingdb.common.Error;
 public interface TransactionManager {
     long begin(); // 开始一个事务，并返回XID
 
-    void commit(long xid); // 提交一个事务
+    /**
+     * 提交一个事务：状态写入 XID 文件但不 fsync，由之后的 flushCommits 落盘，
+     * 在那之前提交的持久性由调用方之前写下的提交日志保证（见 DataManager.logCommit），
+     * 与 commitAsync 的区别只是状态立即写入文件
+     */
+    void commit(long xid);
 
     void abort(long xid); // 回滚一个事务
 
+    void commitAsync(long xid); // 异步提交一个事务，状态稍后才写入 XID 文件
+
+    void flushCommits(Runnable logFence); // 执行日志屏障后把异步提交的状态写入 XID 文件
+
+    /**
+     * 冻结最早的活跃事务之前的事务状态，XID 文件只保留之后的部分；只能在恢复完成后调用
+     */
+    void freeze();
+
     boolean isActive(long xid); // 检查一个事务是否已开始
 
     boolean isCommitted(long xid); // 检查一个事务是否已提交
@@ -63,7 +77,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 
     /**
@@ -90,6 +104,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 }
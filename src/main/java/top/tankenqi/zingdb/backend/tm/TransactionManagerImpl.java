@@ -1,16 +1,48 @@
 package top.tankenqi.zingdb.backend.tm;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.tankenqi.zingdb.backend.utils.Panic;
 import top.tankenqi.zingdb.backend.utils.Parser;
+import top.tankenqi.zingdb.backend.utils.Props;
 import top.tankenqi.zingdb.common.Error;
 
+/**
+ * 事务状态以 XID 文件为准，打开时整个载入内存中的 XidStatusTable，之后的状态查询只读内存，不再访问文件；
+ * 状态变更先写内存表，再写入 XID 文件（文件相当于状态表的日志）：
+ * 回滚在返回前落盘；提交不 fsync，commit 立即写入、commitAsync 由 flushCommits 批量写入，
+ * 两者都登记在 pendingCommits 中，由 flushCommits 统一落盘；在那之前提交的持久性由 DataManager 的提交日志保证。
+ *
+ * XID 按块分配：文件头记录的是已预留的最大 XID，每次预留 zingdb.xid.block 个（默认 1024），
+ * 先把文件用 0（活跃）扩展到块尾并落盘，再写文件头并落盘，块内的 begin 只在内存中递增计数。
+ * 重新打开时从文件头之后继续分配；正常关闭时把文件头与文件长度退回到最后分配的 XID，
+ * 异常退出时上次没用完的 XID 是活跃状态，没有任何日志与数据引用它们。
+ *
+ * 冻结（freeze）：比最早的活跃事务更早的事务状态都已确定，把它们压缩成冻结信息——
+ * 冻结线 Base 之下除了记下的回滚事务，其余都是已提交——XID 文件只保留 Base 之后每个事务的状态字节。
+ * 冻结后的 XID 文件（带 FROZEN_FLAG 的文件头）格式为：
+ * [XidCounter | FROZEN_FLAG 8] [Base 8] [N 4] [AbortedXid 8] * N [Status] * (XidCounter - Base + 1)
+ * 未冻结的文件格式不变：[XidCounter 8] [Status] * XidCounter。
+ * 新文件写到临时文件后原子改名替换旧文件，崩溃时要么是旧文件要么是新文件。
+ * 冻结只在持 counterLock 时读取当前的 XidCounter，不阻塞 begin：最早的活跃事务由一个只前进的游标跟踪，
+ * 冻结信息在锁外写入临时文件，只有拷贝冻结线之后的状态字节与替换文件时才持有 fileLock 的写锁。
+ */
 public class TransactionManagerImpl implements TransactionManager {
 
     // XID文件头长度（字节）
@@ -23,29 +55,78 @@ public class TransactionManagerImpl implements TransactionManager {
     private static final byte FIELD_TRAN_COMMITTED = 1;
     private static final byte FIELD_TRAN_ABORTED = 2;
 
+    // 打开时每次从 XID 文件读入的字节数
+    private static final int LOAD_CHUNK = 1 << 16;
+
+    public static final long DEFAULT_XID_BLOCK = 1024L;
+    // 冻结线至少能前进这么多个 XID 时才重写 XID 文件
+    public static final long DEFAULT_FREEZE_MIN = 1L << 20;
+
+    // 文件头的最高位：文件是冻结后的格式
+    private static final long FROZEN_FLAG = 1L << 63;
+    // 冻结后的文件头中，回滚事务列表之前的长度：[XidCounter] [Base] [N]
+    private static final int LEN_FROZEN_HEADER = LEN_XID_HEADER_LENGTH + 8 + 4;
+
     // 超级事务的XID定义为“0”，永远为commited状态
     public static final long SUPER_XID = 0;
 
     // XID文件后缀
     static final String XID_SUFFIX = ".xid";
 
+    /**
+     * 冻结信息：XID 小于 base 的事务，在 aborted（升序）中的已回滚，其余已提交
+     */
+    private static class Frozen {
+        final long base;
+        final long[] aborted;
+
+        Frozen(long base, long[] aborted) {
+            this.base = base;
+            this.aborted = aborted;
+        }
+    }
+
+    private final File f;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private long xidCounter; // 最后分配出去的 XID
+    private long reservedEnd; // 已预留（写入文件头）的最大 XID
+    private final long openCounter; // 打开时文件头中的 XID，不超过它的活跃事务都是上次运行遗留的
+    private final int xidBlock;
+    private final long freezeMin;
     private Lock counterLock;
+    private volatile Frozen frozen = new Frozen(1, new long[0]);
+    private long dataStart = LEN_XID_HEADER_LENGTH; // 状态字节在文件中的起始位置
+    // 读写 fc 时持有读锁；冻结替换文件时持有写锁
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final XidStatusTable statuses;
+    // 异步提交、状态还没写入 XID 文件的事务（内存表中已是提交状态）
+    private final Set<Long> pendingCommits = ConcurrentHashMap.newKeySet();
+    private final Lock commitLock = new ReentrantLock();
+    private final Lock freezeLock = new ReentrantLock(); // 串行化冻结
+    private long activeCursor; // 冻结线之后可能仍活跃的最小 XID，之前的都已结束；由 freezeLock 保护
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    TransactionManagerImpl(File f, RandomAccessFile raf, FileChannel fc) {
+        this.f = f;
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        xidBlock = (int) Math.min(1 << 20, Math.max(1L, Props.readLong("zingdb.xid.block", DEFAULT_XID_BLOCK)));
+        freezeMin = Math.max(1L, Props.readLong("zingdb.xid.freeze.min", DEFAULT_FREEZE_MIN));
+        // 状态表每页 2^zingdb.xid.table.page.shift 个 long，只影响内存分配与截断的粒度
+        statuses = new XidStatusTable((int) Math.min(20, Math.max(0L,
+                Props.readLong("zingdb.xid.table.page.shift", XidStatusTable.DEFAULT_PAGE_SHIFT))));
         // 检查XID文件是否合法
         checkXIDCounter();
+        openCounter = xidCounter;
+        loadStatuses();
     }
 
     /**
      * 检查XID文件是否合法
      * 通过文件头信息反推文件的理论长度，与文件的实际长度做对比,
      * 如果不同则认为 XID 文件不合法。
+     * 文件比文件头说明的更长，只可能是预留 XID 块时扩展了文件、还没写文件头就退出了，截掉多出的部分即可。
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -68,60 +149,141 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(e);
         }
         // 根据文件头信息，计算出XID的数量
-        this.xidCounter = Parser.parseLong(buf.array());
+        long header = Parser.parseLong(buf.array());
+        this.xidCounter = this.reservedEnd = header & ~FROZEN_FLAG;
+        if ((header & FROZEN_FLAG) != 0) {
+            readFrozen(fileLen);
+        }
         // 计算理论上的文件长度
         long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
+        if (end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if (end < fileLen) {
+            try {
+                fc.truncate(end);
+                fc.force(true);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
     }
 
-    // 根据事务xid取得其在xid文件中对应的位置
-    private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
-    }
-
-    // 更新xid事务的状态为status
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-
+    /**
+     * 读取冻结后文件头中的 Base 与回滚事务列表
+     */
+    private void readFrozen(long fileLen) {
         try {
-            fc.position(offset);
-            fc.write(buf);
+            ByteBuffer head = ByteBuffer.allocate(LEN_FROZEN_HEADER - LEN_XID_HEADER_LENGTH);
+            fc.read(head, LEN_XID_HEADER_LENGTH);
+            long base = head.getLong(0);
+            int n = head.getInt(8);
+            if (base < 1 || base > xidCounter + 1 || n < 0 || LEN_FROZEN_HEADER + 8L * n > fileLen) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+            ByteBuffer list = ByteBuffer.allocate(8 * n);
+            while (list.hasRemaining()) {
+                fc.read(list, LEN_FROZEN_HEADER + list.position());
+            }
+            long[] aborted = new long[n];
+            list.flip();
+            list.asLongBuffer().get(aborted);
+            frozen = new Frozen(base, aborted);
+            dataStart = LEN_FROZEN_HEADER + 8L * n;
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    /**
+     * 把 XID 文件中冻结线之后全部事务的状态载入内存表
+     */
+    private void loadStatuses() {
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_CHUNK);
+        long xid = frozen.base;
         try {
-            fc.force(false); // 强制将数据写入磁盘
+            while (xid <= xidCounter) {
+                buf.clear();
+                buf.limit((int) Math.min(LOAD_CHUNK, xidCounter - xid + 1));
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+                for (int i = 0; i < buf.limit(); i++, xid++) {
+                    byte status = buf.get(i);
+                    if (status != FIELD_TRAN_ACTIVE) {
+                        statuses.set(xid, status);
+                    }
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 根据事务xid取得其在xid文件中对应的位置，xid 不能在冻结线之下
+    private long getXidPosition(long xid) {
+        return dataStart + (xid - frozen.base) * XID_FIELD_SIZE;
+    }
+
+    private long headerValue(long counter) {
+        return dataStart == LEN_XID_HEADER_LENGTH && frozen.base == 1 ? counter : counter | FROZEN_FLAG;
+    }
+
+    // 更新xid事务的状态为status：先改内存表，再写入文件，force 为 true 时落盘
+    private void updateXID(long xid, byte status, boolean force) {
+        statuses.set(xid, status);
+        byte[] tmp = new byte[XID_FIELD_SIZE];
+        tmp[0] = status;
+        ByteBuffer buf = ByteBuffer.wrap(tmp);
+
+        fileLock.readLock().lock();
         try {
-            fc.position(0);
-            fc.write(buf);
+            if (xid < frozen.base) {
+                return; // 冻结时已经按内存表中的状态写进了冻结信息
+            }
+            // 按位置写，不同事务的并发更新不会争用 channel 的 position
+            fc.write(buf, getXidPosition(xid));
+            if (force) {
+                fc.force(false); // 强制将数据写入磁盘
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
+    }
+
+    /**
+     * 预留下一块 XID：先用 0 把文件扩展到块尾并落盘，再把块尾写入文件头并落盘，
+     * 任何时候崩溃，文件头都不会超过文件的实际长度
+     */
+    private void reserveXIDBlock() {
+        long end = reservedEnd + xidBlock;
+        fileLock.readLock().lock();
         try {
+            ByteBuffer zeros = ByteBuffer.allocate(xidBlock * XID_FIELD_SIZE);
+            while (zeros.hasRemaining()) {
+                fc.write(zeros, getXidPosition(reservedEnd + 1) + zeros.position());
+            }
+            fc.force(true); // 文件长度变了，连同元数据一起落盘
+            ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(headerValue(end)));
+            fc.write(buf, 0);
             fc.force(false); // 强制将数据写入磁盘
+            // 在读锁内更新，冻结持写锁时看到的 reservedEnd 与文件头一致
+            reservedEnd = end;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
     /**
-     * begin() 方法会开始一个事务，更具体的，
-     * 首先设置 xidCounter+1 事务的状态为 active，
-     * 随后 xidCounter 自增，并更新文件头。
+     * begin() 方法会开始一个事务：xidCounter 自增后的值就是新事务的 XID，
+     * 它在 XID 文件中的状态字节在预留时已经是 0（active），
+     * 只有用完已预留的块时才需要写文件。
      */
     public long begin() {
         /**
@@ -130,39 +292,192 @@ public class TransactionManagerImpl implements TransactionManager {
          */
         counterLock.lock();
         try {
-            // 获取新的XID，就是当前的 xidCounter + 1
-            long xid = xidCounter + 1;
-            // 设置新的XID的状态为 active
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            // 更新 xidCounter
-            incrXIDCounter();
-            return xid;
+            if (xidCounter == reservedEnd) {
+                reserveXIDBlock();
+            }
+            return ++xidCounter;
         } finally {
             counterLock.unlock();
         }
     }
 
-    // 提交XID事务
+    /**
+     * 提交XID事务，提交状态写入 XID 文件但不落盘，与 commitAsync 一样登记 pendingCommits，
+     * 由之后的 flushCommits 落盘；检查点只有在这之后才能越过它的提交日志
+     */
     public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITTED);
+        pendingCommits.add(xid);
+        updateXID(xid, FIELD_TRAN_COMMITTED, false);
     }
 
-    // 回滚XID事务
-    public void abort(long xid) {
-        updateXID(xid, FIELD_TRAN_ABORTED);
+    /**
+     * 提交XID事务但不写文件：内存表立即改为已提交，状态由之后的 flushCommits 写入 XID 文件，
+     * 在那之前崩溃时提交是否生效取决于调用方的提交日志
+     */
+    public void commitAsync(long xid) {
+        pendingCommits.add(xid);
+        statuses.set(xid, FIELD_TRAN_COMMITTED);
     }
 
-    // 检测XID事务是否处于status状态
-    private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+    /**
+     * 把异步提交的事务状态批量写入 XID 文件，只 fsync 一次；
+     * 写之前先执行 logFence，保证这些事务的日志先于提交状态落盘
+     */
+    public void flushCommits(Runnable logFence) {
+        commitLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            if (pendingCommits.isEmpty()) {
+                return;
+            }
+            List<Long> xids = new ArrayList<>(pendingCommits);
+            logFence.run();
+            fileLock.readLock().lock();
+            try {
+                for (long xid : xids) {
+                    ByteBuffer buf = ByteBuffer.wrap(new byte[] { FIELD_TRAN_COMMITTED });
+                    fc.write(buf, getXidPosition(xid));
+                }
+                fc.force(false);
+            } finally {
+                fileLock.readLock().unlock();
+            }
+            pendingCommits.removeAll(xids);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * 冻结：冻结线取冻结线之后第一个活跃事务与最早的待写入提交中较小者，
+     * 上次运行遗留的活跃事务（恢复后仍活跃的只可能是没写过日志的）按回滚处理，不挡住冻结线。
+     * 冻结线前进不足 zingdb.xid.freeze.min 个 XID 时什么也不做。
+     * 必须在恢复完成后调用；新文件中冻结线之后的状态字节从旧文件原样拷贝，不会让还没落盘的提交提前落盘。
+     *
+     * 事务状态只会从活跃变为结束，所以寻找最早的活跃事务时从上次停下的位置继续，
+     * 每个 XID 在整个运行期间只检查一次；counterLock 只用来读取 XidCounter。
+     * 提交先登记 pendingCommits 再改内存表，扫描时看到已提交的事务，之后一定能在 pendingCommits 中看到（除非已写入文件）。
+     */
+    public void freeze() {
+        freezeLock.lock();
+        try {
+            long counter;
+            counterLock.lock();
+            try {
+                counter = xidCounter;
+            } finally {
+                counterLock.unlock();
+            }
+            Frozen fz = frozen;
+            long xid = Math.max(activeCursor, Math.max(fz.base, openCounter + 1));
+            while (xid <= counter && statuses.get(xid) != FIELD_TRAN_ACTIVE) {
+                xid++;
+            }
+            activeCursor = xid;
+            long horizon = xid;
+            for (long pending : pendingCommits) {
+                horizon = Math.min(horizon, pending);
+            }
+            if (horizon - fz.base < freezeMin) {
+                return;
+            }
+            rewrite(fz, horizon);
+            statuses.truncate(horizon);
+        } finally {
+            freezeLock.unlock();
+        }
+    }
+
+    /**
+     * 把冻结线推进到 horizon：写出新文件并原子替换旧文件，然后改用新文件。
+     * 冻结线之下的状态都已确定，冻结信息在锁外写入临时文件；
+     * 文件头、冻结线之后的状态字节与文件替换在 fileLock 的写锁下完成，期间没有其他写入
+     */
+    private void rewrite(Frozen fz, long horizon) {
+        List<Long> aborted = new ArrayList<>();
+        for (long xid : fz.aborted) {
+            aborted.add(xid);
+        }
+        for (long xid = fz.base; xid < horizon; xid++) {
+            byte status = statuses.get(xid);
+            if (status == FIELD_TRAN_ABORTED || status == FIELD_TRAN_ACTIVE) {
+                aborted.add(xid);
+            }
+        }
+        long[] list = new long[aborted.size()];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = aborted.get(i);
+        }
+
+        File tmp = new File(f.getPath() + ".tmp");
+        long newStart = LEN_FROZEN_HEADER + 8L * list.length;
+        FileChannel out = null;
+        try {
+            out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            // XidCounter 持锁后再写
+            ByteBuffer head = ByteBuffer.allocate((int) newStart);
+            head.putLong(0).putLong(horizon).putInt(list.length);
+            head.asLongBuffer().put(list);
+            head.clear();
+            while (head.hasRemaining()) {
+                out.write(head, head.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        fileLock.writeLock().lock();
+        try {
+            out.write(ByteBuffer.wrap(Parser.long2Byte(reservedEnd | FROZEN_FLAG)), 0);
+            // 冻结线之后的状态字节原样拷贝
+            long from = getXidPosition(horizon);
+            long len = getXidPosition(reservedEnd + 1) - from;
+            long copied = 0;
+            while (copied < len) {
+                copied += fc.transferTo(from + copied, len - copied, out.position(newStart + copied));
+            }
+            out.force(true);
+            out.close();
+
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDir(f.getAbsoluteFile().getParentFile());
+            fc.close();
+            file.close();
+            file = new RandomAccessFile(f, "rw");
+            fc = file.getChannel();
+            dataStart = newStart;
+            frozen = new Frozen(horizon, list);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    // 回滚XID事务
+    public void abort(long xid) {
+        updateXID(xid, FIELD_TRAN_ABORTED, true);
+    }
+
+    /**
+     * 检测XID事务是否处于status状态，只读内存表或冻结信息。
+     * 冻结先发布新的冻结信息再截断内存表，读内存表之后冻结信息没变，读到的页就还没被截断；
+     * 变了则可能读到了已丢弃的页（读出 0，即活跃），按新的冻结信息重新查
+     */
+    private boolean checkXID(long xid, byte status) {
+        while (true) {
+            Frozen fz = frozen;
+            if (xid < fz.base) {
+                byte settled = Arrays.binarySearch(fz.aborted, xid) >= 0 ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED;
+                return settled == status;
+            }
+            byte s = statuses.get(xid);
+            if (frozen == fz) {
+                return s == status;
+            }
         }
-        return buf.array()[0] == status;
     }
 
     public boolean isActive(long xid) {
@@ -187,12 +502,37 @@ public class TransactionManagerImpl implements TransactionManager {
      * 关闭事务管理器
      */
     public void close() {
+        // DataManager 关闭时已经带着日志屏障写完了之前的异步提交，剩下的事务没有日志
+        flushCommits(() -> {});
+        counterLock.lock();
+        fileLock.writeLock().lock();
         try {
+            // 退回没用完的 XID：先改文件头再截断，两步之间崩溃时打开会截掉多出的部分
+            if (reservedEnd > xidCounter) {
+                fc.write(ByteBuffer.wrap(Parser.long2Byte(headerValue(xidCounter))), 0);
+                fc.force(false);
+                fc.truncate(getXidPosition(xidCounter + 1));
+                fc.force(true);
+                reservedEnd = xidCounter;
+            }
             fc.close();
             file.close();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
+            counterLock.unlock();
         }
     }
 
+    /**
+     * 替换文件后 fsync 所在目录，保证目录项落盘；不支持打开目录的平台上跳过
+     */
+    private static void syncDir(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
 }
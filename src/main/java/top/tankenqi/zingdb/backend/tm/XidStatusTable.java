@@ -0,0 +1,113 @@
+package top.tankenqi.zingdb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 内存中的事务状态表：每个 XID 占 2 bit，32 个 XID 打包进一个 long
+ *
+ * long 按页分配（默认每页 64K 个，即 2M 个 XID），页数组只在增长或截断时整体替换，
+ * 读取不加锁：取页数组的 volatile 快照后直接读对应的 long；
+ * 写入对单个 long 做 CAS，同一个 long 中其他 XID 的并发更新互不覆盖。
+ * 还没分配到的 XID 读出来是 0，即 ACTIVE，与 XID 文件中未写入的字节一致。
+ * 冻结之后，整页都在冻结线之下的页被丢弃（truncate），它们的状态改由冻结信息回答。
+ */
+class XidStatusTable {
+
+    static final int DEFAULT_PAGE_SHIFT = 16;
+    private static final int XIDS_PER_WORD = 32;
+    private static final long MASK = 0b11L;
+
+    /**
+     * 页数组快照：arr[k] 是第 first + k 页
+     */
+    private static class Pages {
+        final long first;
+        final AtomicLongArray[] arr;
+
+        Pages(long first, AtomicLongArray[] arr) {
+            this.first = first;
+            this.arr = arr;
+        }
+    }
+
+    private final int pageShift; // 每页 1 << pageShift 个 long
+    private volatile Pages pages = new Pages(0, new AtomicLongArray[0]);
+
+    XidStatusTable(int pageShift) {
+        this.pageShift = pageShift;
+    }
+
+    byte get(long xid) {
+        long i = xid - 1;
+        long word = i / XIDS_PER_WORD;
+        Pages ps = pages;
+        long p = (word >>> pageShift) - ps.first;
+        if (i < 0 || p < 0 || p >= ps.arr.length) {
+            return 0;
+        }
+        long v = ps.arr[(int) p].get((int) (word & ((1 << pageShift) - 1)));
+        return (byte) ((v >>> shift(i)) & MASK);
+    }
+
+    /**
+     * 已被截断的页上的 XID 忽略写入
+     */
+    void set(long xid, byte status) {
+        long i = xid - 1;
+        long word = i / XIDS_PER_WORD;
+        AtomicLongArray page = page(word >>> pageShift);
+        if (page == null) {
+            return;
+        }
+        int w = (int) (word & ((1 << pageShift) - 1));
+        int shift = shift(i);
+        long old, upd;
+        do {
+            old = page.get(w);
+            upd = (old & ~(MASK << shift)) | ((status & MASK) << shift);
+        } while (!page.compareAndSet(w, old, upd));
+    }
+
+    /**
+     * 丢弃全部 XID 都小于 xid 的页
+     */
+    synchronized void truncate(long xid) {
+        Pages ps = pages;
+        long first = Math.max(ps.first, (xid - 1) / XIDS_PER_WORD >>> pageShift);
+        if (first > ps.first) {
+            int drop = (int) Math.min(ps.arr.length, first - ps.first);
+            pages = new Pages(first, Arrays.copyOfRange(ps.arr, drop, ps.arr.length));
+        }
+    }
+
+    private static int shift(long i) {
+        return (int) (i % XIDS_PER_WORD) * 2;
+    }
+
+    private AtomicLongArray page(long p) {
+        Pages ps = pages;
+        if (p < ps.first) {
+            return null;
+        }
+        if (p - ps.first < ps.arr.length) {
+            return ps.arr[(int) (p - ps.first)];
+        }
+        synchronized (this) {
+            ps = pages;
+            if (p < ps.first) {
+                return null;
+            }
+            int k = (int) (p - ps.first);
+            if (k >= ps.arr.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(ps.arr, k + 1);
+                for (int j = ps.arr.length; j <= k; j++) {
+                    grown[j] = new AtomicLongArray(1 << pageShift);
+                }
+                ps = new Pages(ps.first, grown);
+                pages = ps;
+            }
+            return ps.arr[k];
+        }
+    }
+}
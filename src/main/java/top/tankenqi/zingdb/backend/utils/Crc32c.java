@@ -0,0 +1,49 @@
+package top.tankenqi.zingdb.backend.utils;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * CRC32C 校验
+ *
+ * 运行在 JDK 9 及以上时使用 java.util.zip.CRC32C（JIT 会替换为 SSE4.2 / ARMv8 的 CRC 指令）；
+ * 项目按 Java 8 编译，所以通过反射取得该类，取不到时退回 Guava 的软件实现，两者结果一致。
+ * 构造器只解析一次，每个线程复用一个实例，每次计算前 reset，日志读写路径上不再反射分配对象。
+ */
+public class Crc32c {
+
+    private static final Constructor<? extends Checksum> JDK_CRC32C = jdkCrc32c();
+    private static final ThreadLocal<Checksum> LOCAL = JDK_CRC32C == null ? null
+            : ThreadLocal.withInitial(Crc32c::newJdkChecksum);
+    private static final HashFunction GUAVA_CRC32C = Hashing.crc32c();
+
+    public static int checksum(byte[] data, int off, int len) {
+        if (LOCAL != null) {
+            Checksum crc = LOCAL.get();
+            crc.reset();
+            crc.update(data, off, len);
+            return (int) crc.getValue();
+        }
+        return GUAVA_CRC32C.hashBytes(data, off, len).asInt();
+    }
+
+    private static Checksum newJdkChecksum() {
+        try {
+            return JDK_CRC32C.newInstance();
+        } catch (ReflectiveOperationException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    private static Constructor<? extends Checksum> jdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
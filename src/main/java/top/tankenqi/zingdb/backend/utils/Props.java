@@ -0,0 +1,20 @@
+package top.tankenqi.zingdb.backend.utils;
+
+/**
+ * 读取 zingdb.* 系统属性：没有设置或无法解析时返回默认值，负数按 0 处理
+ */
+public class Props {
+    public static long readLong(String name, long def) {
+        String v = System.getProperty(name);
+        if (v == null || v.isEmpty()) return def;
+        try { return Math.max(0L, Long.parseLong(v.trim())); }
+        catch (NumberFormatException e) { return def; }
+    }
+
+    public static double readDouble(String name, double def) {
+        String v = System.getProperty(name);
+        if (v == null || v.isEmpty()) return def;
+        try { return Math.max(0.0, Double.parseDouble(v.trim())); }
+        catch (NumberFormatException e) { return def; }
+    }
+}
@@ -1,11 +1,10 @@
 package top.tankenqi.zingdb.backend.vm;
 
-import java.util.Arrays;
-
 import com.google.common.primitives.Bytes;
 
 import top.tankenqi.zingdb.backend.common.SubArray;
 import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
+import top.tankenqi.zingdb.backend.tm.TransactionManager;
 import top.tankenqi.zingdb.backend.utils.Parser;
 
 /**
@@ -13,6 +12,11 @@ import top.tankenqi.zingdb.backend.utils.Parser;
  * entry结构：
  * [XMIN] [XMAX] [data]
  * XMIN 应当在版本创建时填写，而 XMAX 则在版本被删除，或者有新版本出现时填写
+ *
+ * 提示位：XMIN、XMAX 的最高两位分别表示对应事务“已提交”“已回滚”，XID 本身用不到这两位。
+ * 可见性判断第一次查到事务已经结束时把结果写进提示位，之后判断直接读提示位，不再查事务状态。
+ * 提示位不写日志，只把页标记为脏：丢了只是下次再查一次；写回页之前日志已经落盘（见 PageCache.setLogFence），
+ * 所以落盘的“已提交”提示位总有落盘的提交日志对应。设置 XMAX 时整个字段被覆盖，旧事务的提示位随之清除。
  */
 public class Entry {
 
@@ -20,6 +24,10 @@ public class Entry {
     private static final int OF_XMAX = OF_XMIN + 8;
     private static final int OF_DATA = OF_XMAX + 8;
 
+    private static final long HINT_COMMITTED = 1L << 63;
+    private static final long HINT_ABORTED = 1L << 62;
+    private static final long XID_MASK = ~(HINT_COMMITTED | HINT_ABORTED);
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
@@ -59,8 +67,8 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start + OF_DATA, data, 0, data.length);
+            byte[] data = new byte[sa.length() - OF_DATA];
+            sa.get(OF_DATA, data, 0, data.length);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -68,22 +76,71 @@ public class Entry {
     }
 
     public long getXmin() {
+        return readXid(OF_XMIN) & XID_MASK;
+    }
+
+    public long getXmax() {
+        return readXid(OF_XMAX) & XID_MASK;
+    }
+
+    /**
+     * XMIN 为 xmin 的事务是否已提交，优先读提示位
+     */
+    public boolean isXminCommitted(TransactionManager tm, long xmin) {
+        return isCommitted(tm, OF_XMIN, xmin);
+    }
+
+    /**
+     * XMAX 为 xmax 的事务是否已提交，优先读提示位
+     */
+    public boolean isXmaxCommitted(TransactionManager tm, long xmax) {
+        return isCommitted(tm, OF_XMAX, xmax);
+    }
+
+    private boolean isCommitted(TransactionManager tm, int off, long xid) {
+        long raw = readXid(off);
+        if ((raw & XID_MASK) == xid) {
+            if ((raw & HINT_COMMITTED) != 0) {
+                return true;
+            }
+            if ((raw & HINT_ABORTED) != 0) {
+                return false;
+            }
+        }
+        if (tm.isCommitted(xid)) {
+            setHint(off, xid, HINT_COMMITTED);
+            return true;
+        }
+        if (tm.isAborted(xid)) {
+            setHint(off, xid, HINT_ABORTED);
+        }
+        return false;
+    }
+
+    private long readXid(int off) {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            return sa.getLong(off);
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    public long getXmax() {
-        dataItem.rLock();
+    /**
+     * 字段仍是 xid 时写入提示位，不写日志
+     */
+    private void setHint(int off, long xid, long hint) {
+        dataItem.lock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_DATA));
+            long raw = sa.getLong(off);
+            if ((raw & XID_MASK) == xid) {
+                sa.putLong(off, raw | hint);
+                dataItem.page().setDirty(true);
+            }
         } finally {
-            dataItem.rUnLock();
+            dataItem.unlock();
         }
     }
 
@@ -91,7 +148,7 @@ public class Entry {
         dataItem.before();
         try {
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start + OF_XMAX, 8);
+            sa.putLong(OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
@@ -1,7 +1,6 @@
 package top.tankenqi.zingdb.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import top.tankenqi.zingdb.backend.tm.TransactionManagerImpl;
 
@@ -9,27 +8,38 @@ import top.tankenqi.zingdb.backend.tm.TransactionManagerImpl;
 public class Transaction {
     public long xid;
     public int level; // 事务隔离级别
-    public Map<Long, Boolean> snapshot; // （当前快照中的活动事务）
+    /**
+     * 当前快照中的活动事务，XID 升序；直接引用 VersionManagerImpl 在 begin 时的活跃事务数组，
+     * 该数组之后不会再被修改，所以建立快照不需要拷贝
+     */
+    public long[] snapshot;
+    private long snapshotXmin; // 快照中最小的 XID，没有其他活跃事务时为自己的 XID
     public Exception err;
     public boolean autoAborted;
+    public boolean asyncCommit; // 异步提交
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    /**
+     * @param active 开始时的活跃事务 XID，升序，都小于 xid；调用方保证之后不再修改
+     */
+    public static Transaction newTransaction(long xid, int level, long[] active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = active;
+            t.snapshotXmin = active.length > 0 ? active[0] : xid;
         }
         return t;
     }
 
+    /**
+     * 快照只包含比自己早开始的事务：小于快照最小 XID 或不小于自己的 XID 时直接返回，
+     * 否则在升序数组中二分查找
+     */
     public boolean isInSnapshot(long xid) {
-        if(xid == TransactionManagerImpl.SUPER_XID) {
+        if(xid == TransactionManagerImpl.SUPER_XID || xid < snapshotXmin || xid >= this.xid) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        return Arrays.binarySearch(snapshot, xid) >= 0;
     }
 }
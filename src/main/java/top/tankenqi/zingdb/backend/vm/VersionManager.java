@@ -9,6 +9,11 @@ public interface VersionManager {
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
+
+    /**
+     * @param asyncCommit 为 true 时事务使用异步提交，见 DataManager.asyncCommit
+     */
+    long begin(int level, boolean asyncCommit);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
@@ -1,7 +1,8 @@
 package top.tankenqi.zingdb.backend.vm;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,19 +13,25 @@ import top.tankenqi.zingdb.backend.tm.TransactionManagerImpl;
 import top.tankenqi.zingdb.backend.utils.Panic;
 import top.tankenqi.zingdb.common.Error;
 
+/**
+ * 活跃事务登记在 ConcurrentHashMap 中，read / insert / delete 查找自己的 Transaction 不加锁；
+ * 活跃事务的 XID 另外保存为升序数组 activeXids，开始、结束事务时在 lock 下复制出新数组整体替换，
+ * 旧数组不再修改，可重复读事务开始时直接引用它作为快照。
+ */
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    private volatile long[] activeXids = new long[0]; // 不含超级事务，只在 lock 下替换
+    Lock lock; // 串行化事务的开始与结束
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID,
                 Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
@@ -38,9 +45,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         // 检查事务的状态是否异常
         if (t.err != null) {
@@ -73,9 +78,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) {
             throw t.err;
@@ -91,9 +94,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) {
             throw t.err;
@@ -153,11 +154,25 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
+        return begin(level, false);
+    }
+
+    @Override
+    public long begin(int level, boolean asyncCommit) {
         lock.lock();
         try {
+            // XID 在锁内分配，单调递增，追加到数组末尾仍然有序
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            long[] active = activeXids;
+            Transaction t = Transaction.newTransaction(xid, level, active);
+            t.asyncCommit = asyncCommit;
+            if (asyncCommit) {
+                dm.asyncCommit(xid);
+            }
             activeTransaction.put(xid, t);
+            long[] next = Arrays.copyOf(active, active.length + 1);
+            next[active.length] = xid;
+            activeXids = next;
             return xid;
         } finally {
             lock.unlock();
@@ -170,9 +185,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if (t.err != null) {
@@ -184,12 +197,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+        // 提交日志落盘即提交，XID 文件中的状态随后批量写入
+        dm.logCommit(xid);
+        tm.commitAsync(xid);
 
+        // 提交状态可见之后才能离开活跃事务、释放锁，
+        // 否则这期间开始的事务快照里没有 xid，之后又会看到它的修改
+        unregister(xid);
         lt.remove(xid);
-        tm.commit(xid);
     }
 
     /**
@@ -206,12 +221,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
         if (!autoAborted) {
-            activeTransaction.remove(xid);
+            unregister(xid);
         }
-        lock.unlock();
 
         if (t.autoAborted)
             return;
@@ -219,6 +232,26 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);
     }
 
+    /**
+     * 把事务从活跃事务中去掉，activeXids 换成去掉 xid 后的新数组
+     */
+    private void unregister(long xid) {
+        lock.lock();
+        try {
+            activeTransaction.remove(xid);
+            long[] active = activeXids;
+            int i = Arrays.binarySearch(active, xid);
+            if (i >= 0) {
+                long[] next = new long[active.length - 1];
+                System.arraycopy(active, 0, next, 0, i);
+                System.arraycopy(active, i + 1, next, i, next.length - i);
+                activeXids = next;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
@@ -2,6 +2,9 @@ package top.tankenqi.zingdb.backend.vm;
 
 import top.tankenqi.zingdb.backend.tm.TransactionManager;
 
+/**
+ * 事务状态通过 Entry 上的提示位查询（见 Entry），已经结束的事务不必每次都问 TransactionManager
+ */
 public class Visibility {
 
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
@@ -9,7 +12,7 @@ public class Visibility {
         if (t.level == 0) {
             return false; // 读已提交隔离级别下，允许版本跳跃
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return e.isXmaxCommitted(tm, xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
         }
     }
 
@@ -36,11 +39,11 @@ public class Visibility {
         if (xmin == xid && xmax == 0)
             return true;
 
-        if (tm.isCommitted(xmin)) {
+        if (e.isXminCommitted(tm, xmin)) {
             if (xmax == 0)
                 return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax)) {
+                if (!e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
@@ -58,11 +61,11 @@ public class Visibility {
         if (xmin == xid && xmax == 0)
             return true;
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (e.isXminCommitted(tm, xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
             if (xmax == 0)
                 return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (!e.isXmaxCommitted(tm, xmax) || xmax > xid || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
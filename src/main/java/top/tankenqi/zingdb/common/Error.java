@@ -18,7 +18,7 @@ public class Error {
     public static final Exception BadLogFileException = new ZingDBException("DM-0001", "Bad log file!");
     public static final Exception MemTooSmallException = new ZingDBException("DM-0002", "Memory too small!");
     public static final Exception DataTooLargeException = new ZingDBException("DM-0003", "Data too large!");
-    public static final Exception DatabaseBusyException = new ZingDBException("DM-0004", "Database is busy!");
+    public static final Exception BadFsmFileException = new ZingDBException("DM-0005", "Bad free space map file!");
 
     // ===== tm (TM) =====
     public static final Exception BadXIDFileException = new ZingDBException("TM-0001", "Bad XID file!");
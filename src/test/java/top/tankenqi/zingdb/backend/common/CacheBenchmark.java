@@ -0,0 +1,94 @@
+package top.tankenqi.zingdb.backend.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * AbstractCache 新旧实现的读多场景对比（JMH）。
+ *
+ * 场景：keys 个热点 key 被预先 get 一次并一直持有（模拟被钉住的热页），
+ * 基准线程随机 get + release，全部命中缓存，测的是命中路径上的同步开销。
+ *
+ * 运行方式（不在 mvn test 中执行）：
+ *   mvn -q test-compile
+ *   mvn -q dependency:build-classpath -Dmdep.outputFile=/tmp/cp.txt
+ *   java -cp target/test-classes:target/classes:$(cat /tmp/cp.txt) \
+ *       top.tankenqi.zingdb.backend.common.CacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class CacheBenchmark {
+
+    @Param({"64", "4096"})
+    public int keys;
+
+    private CurrentCache current;
+    private LegacyCache legacy;
+
+    static class CurrentCache extends AbstractCache<Long> {
+        CurrentCache() { super(0); }
+        @Override protected Long getForCache(long key) { return key; }
+        @Override protected void releaseForCache(Long obj) {}
+    }
+
+    static class LegacyCache extends LegacyLockCache<Long> {
+        LegacyCache() { super(0); }
+        @Override protected Long getForCache(long key) { return key; }
+        @Override protected void releaseForCache(Long obj) {}
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        current = new CurrentCache();
+        legacy = new LegacyCache();
+        for (long k = 0; k < keys; k++) {
+            current.get(k);
+            legacy.get(k);
+        }
+    }
+
+    @Benchmark
+    public long current() throws Exception {
+        long k = ThreadLocalRandom.current().nextInt(keys);
+        long v = current.get(k);
+        current.release(k);
+        return v;
+    }
+
+    @Benchmark
+    public long legacy() throws Exception {
+        long k = ThreadLocalRandom.current().nextInt(keys);
+        long v = legacy.get(k);
+        legacy.release(k);
+        return v;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -3,6 +3,7 @@ package top.tankenqi.zingdb.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -46,4 +47,194 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    /**
+     * 可控的缓存：记录回源与写回次数，回源可以在 gate 上阻塞，并可按需失败
+     */
+    private static class GatedCache extends AbstractCache<Holder> {
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger releases = new AtomicInteger();
+        volatile CountDownLatch gate;
+        final CountDownLatch loading = new CountDownLatch(1);
+        volatile Exception failure;
+
+        GatedCache(int maxResource, boolean retainUnpinned) {
+            super(maxResource, retainUnpinned, 1000);
+        }
+
+        @Override
+        protected Holder getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            loading.countDown();
+            CountDownLatch g = gate;
+            if (g != null) {
+                g.await();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return new Holder(key);
+        }
+
+        @Override
+        protected void releaseForCache(Holder obj) {
+            // 写回时不能有任何持有者
+            assert obj.holders.get() == 0;
+            obj.evicted = true;
+            releases.incrementAndGet();
+        }
+    }
+
+    private static class Holder {
+        final long key;
+        final AtomicInteger holders = new AtomicInteger();
+        volatile boolean evicted;
+
+        Holder(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 等待线程进入阻塞状态，即已经在等待加载中的 future
+     */
+    private static void awaitBlocked(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING) {
+            assert t.isAlive();
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 同一个 key 上并发未命中只回源一次，等待加载的线程记为未命中
+     */
+    @Test
+    public void testSingleLoad() throws Exception {
+        GatedCache c = new GatedCache(10, false);
+        c.gate = new CountDownLatch(1);
+        Holder[] got = new Holder[4];
+        Thread[] ts = new Thread[got.length];
+        for (int i = 0; i < ts.length; i++) {
+            final int idx = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    got[idx] = c.get(7);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            });
+            ts[i].start();
+            if (i == 0) {
+                c.loading.await();
+            }
+        }
+        for (Thread t : ts) {
+            awaitBlocked(t);
+        }
+        c.gate.countDown();
+        for (Thread t : ts) {
+            t.join();
+        }
+        assert c.loads.get() == 1;
+        for (Holder h : got) {
+            assert h == got[0] && h.key == 7;
+        }
+        assert c.getMisses() == ts.length && c.getHits() == 0;
+
+        c.get(7);
+        assert c.getHits() == 1 && c.loads.get() == 1;
+        for (int i = 0; i <= ts.length; i++) {
+            c.release(7);
+        }
+        assert c.releases.get() == 1;
+    }
+
+    /**
+     * 回源失败时，等待同一次加载的线程收到同一个异常；之后的访问重新回源
+     */
+    @Test
+    public void testLoadFailure() throws Exception {
+        GatedCache c = new GatedCache(10, false);
+        Exception boom = new Exception("boom");
+        c.failure = boom;
+        c.gate = new CountDownLatch(1);
+        Exception[] errs = new Exception[2];
+        Thread[] ts = new Thread[errs.length];
+        for (int i = 0; i < ts.length; i++) {
+            final int idx = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    c.get(3);
+                } catch (Exception e) {
+                    errs[idx] = e;
+                }
+            });
+            ts[i].start();
+            if (i == 0) {
+                c.loading.await();
+            }
+        }
+        for (Thread t : ts) {
+            awaitBlocked(t);
+        }
+        c.gate.countDown();
+        for (Thread t : ts) {
+            t.join();
+        }
+        assert errs[0] == boom && errs[1] == boom;
+        assert c.loads.get() == 1;
+        assert !c.contains(3);
+
+        c.failure = null;
+        c.gate = null;
+        assert c.get(3).key == 3;
+        assert c.loads.get() == 2;
+        c.release(3);
+    }
+
+    /**
+     * 释放与驱逐和获取并发：拿到的资源一定没有被写回，写回时一定没有持有者，
+     * 两种驱逐策略下最终回源次数与写回次数一致
+     */
+    @Test
+    public void testReleaseRetainRace() throws Exception {
+        raceRetain(new GatedCache(8, false));
+        raceRetain(new GatedCache(4, true));
+    }
+
+    private void raceRetain(GatedCache c) throws Exception {
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                Random rnd = new Random();
+                try {
+                    for (int j = 0; j < 20000; j++) {
+                        long key = rnd.nextInt(6);
+                        Holder h;
+                        try {
+                            h = c.get(key);
+                        } catch (Exception e) {
+                            if (e == Error.CacheFullException) continue;
+                            throw e;
+                        }
+                        h.holders.incrementAndGet();
+                        if (h.evicted || h.key != key) {
+                            failures.incrementAndGet();
+                        }
+                        h.holders.decrementAndGet();
+                        c.release(key);
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assert failures.get() == 0;
+        c.close();
+        assert c.loads.get() == c.releases.get();
+    }
 }
@@ -5,7 +5,9 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,7 +16,12 @@ import org.junit.Test;
 
 import top.tankenqi.zingdb.backend.common.SubArray;
 import top.tankenqi.zingdb.backend.dm.dataItem.DataItem;
+import top.tankenqi.zingdb.backend.dm.logger.Logger;
+import top.tankenqi.zingdb.backend.dm.logger.LoggerTest;
+import top.tankenqi.zingdb.backend.dm.page.PageX;
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.dm.pageIndex.FreeSpaceMap;
+import top.tankenqi.zingdb.backend.dm.pageIndex.PageIndex;
 import top.tankenqi.zingdb.backend.tm.MockTransactionManager;
 import top.tankenqi.zingdb.backend.tm.TransactionManager;
 import top.tankenqi.zingdb.backend.utils.Panic;
@@ -82,16 +89,15 @@ public class DataManagerTest {
                     data1.rLock();
                     SubArray s0 = data0.data();
                     SubArray s1 = data1.data();
-                    assert Arrays.equals(Arrays.copyOfRange(s0.raw, s0.start, s0.end),
-                            Arrays.copyOfRange(s1.raw, s1.start, s1.end));
+                    assert Arrays.equals(s0.toBytes(), s1.toBytes());
                     data0.rUnLock();
                     data1.rUnLock();
 
                     byte[] newData = RandomUtil.randomBytes(dataLen);
                     data0.before();
                     data1.before();
-                    System.arraycopy(newData, 0, s0.raw, s0.start, dataLen);
-                    System.arraycopy(newData, 0, s1.raw, s1.start, dataLen);
+                    s0.put(0, newData, 0, dataLen);
+                    s1.put(0, newData, 0, dataLen);
                     data0.after(0);
                     data1.after(0);
                     data0.release();
@@ -103,6 +109,21 @@ public class DataManagerTest {
         }
     }
 
+    /**
+     * 测试里用不关闭旧实例来模拟崩溃，旧实例的后台刷脏页和检查点线程还在运行，
+     * 不能让它们在新实例恢复之后再把旧页写回文件
+     */
+    private static void disableBackgroundFlush(boolean disable) {
+        String[] props = { "zingdb.pc.flush.interval.ms", "zingdb.pc.dirty.ratio", "zingdb.dm.checkpoint.interval.ms" };
+        for (String prop : props) {
+            if (disable) {
+                System.setProperty(prop, prop.endsWith("ratio") ? "2" : String.valueOf(Long.MAX_VALUE));
+            } else {
+                System.clearProperty(prop);
+            }
+        }
+    }
+
     /**
      * 单线程测试
      * 
@@ -124,7 +145,8 @@ public class DataManagerTest {
         mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        LoggerTest.deleteLog("/tmp/TESTDMSingle");
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     /**
@@ -150,7 +172,8 @@ public class DataManagerTest {
         mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        LoggerTest.deleteLog("/tmp/TestDMMulti");
+        new File("/tmp/TestDMMulti.fsm").delete();
     }
 
     /**
@@ -160,6 +183,7 @@ public class DataManagerTest {
      */
     @Test
     public void testRecoverySimple() throws InterruptedException {
+        disableBackgroundFlush(true);
         TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoverySimple");
         DataManager dm0 = DataManager.create("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE * 30, tm0);
         DataManager mdm = MockDataManager.newMockDataManager();
@@ -179,10 +203,315 @@ public class DataManagerTest {
         }
         dm0.close();
         mdm.close();
+        disableBackgroundFlush(false);
 
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        LoggerTest.deleteLog("/tmp/TestRecoverySimple");
+        new File("/tmp/TestRecoverySimple.fsm").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    /**
+     * 关闭后空闲空间表保存在 .fsm 文件中，重新打开时直接载入，载入的值是页面实际空闲空间向下取整的结果；
+     * 表中记录偏大（模拟异常退出前没来得及写回）时，插入以页面为准并纠正记录
+     */
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create("/tmp/TestFSMPersist", PageCache.PAGE_SIZE * 20, tm0);
+        for (int i = 0; i < 3000; i++) {
+            dm.insert(0, RandomUtil.randomBytes(200 + i % 1500));
+        }
+        dm.close();
+        File fsm = new File("/tmp/TestFSMPersist.fsm");
+        assert fsm.exists();
+
+        dm = (DataManagerImpl) DataManager.open("/tmp/TestFSMPersist", PageCache.PAGE_SIZE * 20, tm0);
+        int pageNumber = dm.pc.getPageNumber();
+        assert pageNumber > 2 * 128;
+        assert dm.fsm.unknownRanges(2, pageNumber).isEmpty();
+        Map<Integer, Integer> actual = new ConcurrentHashMap<>();
+        dm.pc.scanPages(2, pageNumber, (pgno, page) -> actual.put(pgno, PageX.getFreeSpace(page)));
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            int recorded = dm.fsm.get(pgno);
+            assert recorded <= actual.get(pgno) && actual.get(pgno) - recorded < FreeSpaceMap.GRANULE;
+        }
+
+        // 把一个几乎满的页记成全空后重新载入，接近整页大小的插入只会选中它，发现放不下，再换到新页
+        int full = 2;
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            assert actual.get(pgno) < PageX.MAX_FREE_SPACE - 64;
+            if (actual.get(pgno) < actual.get(full)) {
+                full = pgno;
+            }
+        }
+        dm.fsm.set(full, PageX.MAX_FREE_SPACE);
+        dm.pIndex = new PageIndex(dm.fsm);
+        dm.pIndex.load(2, pageNumber);
+        long uid = dm.insert(0, RandomUtil.randomBytes(PageX.MAX_FREE_SPACE - 16));
+        assert (int) (uid >>> 32) == pageNumber + 1;
+        assert dm.fsm.get(full) <= actual.get(full);
+        dm.close();
+
+        new File("/tmp/TestFSMPersist.db").delete();
+        LoggerTest.deleteLog("/tmp/TestFSMPersist");
+        fsm.delete();
+    }
+
+    /**
+     * 检查点之后异常退出：恢复只从检查点记录的位置重放，检查点之前写的页不能被截掉，
+     * 并行重做并按脏页表跳过已落盘的修改后，已提交事务的数据都在，未提交事务的插入被撤销
+     */
+    @Test
+    public void testCheckpointRecovery() throws Exception {
+        String path = "/tmp/TestCheckpointRecovery";
+        disableBackgroundFlush(true);
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 20, tm0);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm0.begin();
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = RandomUtil.randomBytes(200);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm0.commit(xid);
+        dm.checkpoint();
+        dm.checkpoint(); // 第二次会写回第一次检查点时的脏页
+
+        xid = tm0.begin();
+        for (int i = 0; i < 500; i++) {
+            byte[] data = RandomUtil.randomBytes(200);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm0.commit(xid);
+        long aborted = tm0.begin();
+        List<Long> abortedUids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            abortedUids.add(dm.insert(aborted, RandomUtil.randomBytes(200)));
+        }
+        int pageNumber = dm.pc.getPageNumber();
+
+        // 核数少的机器上也走并行重做
+        System.setProperty("zingdb.recover.threads", "4");
+        dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 20, tm0);
+        System.clearProperty("zingdb.recover.threads");
+        assert dm.pc.getPageNumber() >= pageNumber - 1;
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            assert di != null;
+            assert Arrays.equals(di.data().toBytes(), datas.get(i));
+            di.release();
+        }
+        for (long uid : abortedUids) {
+            assert dm.read(uid) == null;
+        }
+        dm.close();
+        tm0.close();
+        disableBackgroundFlush(false);
+
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+
+    /**
+     * 插入日志已经落盘、页还没修改时做检查点：这一页还不是脏页，但已经标记了 recLSN，
+     * 必须进入脏页表，否则恢复会按脏页表跳过这条插入日志，而这一页从未写回
+     */
+    @Test
+    public void testCheckpointBeforePageMutation() throws Exception {
+        String path = "/tmp/TestCheckpointMidInsert";
+        disableBackgroundFlush(true);
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 20, tm0);
+
+        Logger real = dm0.logger;
+        boolean[] armed = { true };
+        dm0.logger = new Logger() {
+            public long log(byte[] data) {
+                long lsn = real.log(data);
+                if (armed[0]) {
+                    armed[0] = false;
+                    dm0.checkpoint();
+                }
+                return lsn;
+            }
+            public long logAsync(byte[] data) { return real.logAsync(data); }
+            public void flush() { real.flush(); }
+            public void truncate(long x) throws Exception { real.truncate(x); }
+            public byte[] next() { return real.next(); }
+            public long lastLsn() { return real.lastLsn(); }
+            public void rewind() { real.rewind(); }
+            public long end() { return real.end(); }
+            public void checkpoint(long lsn) { real.checkpoint(lsn); }
+            public void close() { real.close(); }
+        };
+        long xid = tm0.begin();
+        long uid = dm0.insert(xid, "inserted".getBytes());
+        assert !armed[0];
+        tm0.commit(xid);
+
+        DataManager dm = DataManager.open(path, PageCache.PAGE_SIZE * 20, tm0);
+        DataItem di = dm.read(uid);
+        assert di != null;
+        assert "inserted".equals(new String(di.data().toBytes()));
+        di.release();
+        dm.close();
+        tm0.close();
+        disableBackgroundFlush(false);
+
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+
+    /**
+     * 在检查点取脏页表之后、写检查点日志之前插入并提交：插入的页不在脏页表中，
+     * 但插入日志在检查点开始位置之后，恢复时必须重做
+     */
+    @Test
+    public void testInsertInsideCheckpointWindow() throws Exception {
+        String path = "/tmp/TestCheckpointWindow";
+        disableBackgroundFlush(true);
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 20, tm0);
+
+        Logger real = dm0.logger;
+        long[] uid = { 0 };
+        dm0.logger = new Logger() {
+            public long log(byte[] data) {
+                if (Recover.isCheckpointLog(data) && uid[0] == 0) {
+                    try {
+                        long xid = tm0.begin();
+                        uid[0] = dm0.insert(xid, "inserted".getBytes());
+                        dm0.logCommit(xid);
+                        tm0.commit(xid);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return real.log(data);
+            }
+            public long logAsync(byte[] data) { return real.logAsync(data); }
+            public void flush() { real.flush(); }
+            public void truncate(long x) throws Exception { real.truncate(x); }
+            public byte[] next() { return real.next(); }
+            public long lastLsn() { return real.lastLsn(); }
+            public void rewind() { real.rewind(); }
+            public long end() { return real.end(); }
+            public void checkpoint(long lsn) { real.checkpoint(lsn); }
+            public void close() { real.close(); }
+        };
+        dm0.checkpoint();
+        assert uid[0] != 0;
+
+        DataManager dm = DataManager.open(path, PageCache.PAGE_SIZE * 20, tm0);
+        DataItem di = dm.read(uid[0]);
+        assert di != null;
+        assert "inserted".equals(new String(di.data().toBytes()));
+        di.release();
+        dm.close();
+        tm0.close();
+        disableBackgroundFlush(false);
+
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+
+    /**
+     * 打开插入日志压缩后，可压缩的长数据写出的日志明显变少，异常退出后仍能从压缩的日志恢复
+     */
+    @Test
+    public void testCompressedInsertLog() throws Exception {
+        String path = "/tmp/TestCompressedInsertLog";
+        disableBackgroundFlush(true);
+        System.setProperty("zingdb.log.compress.bytes", "64");
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 20, tm0);
+        System.clearProperty("zingdb.log.compress.bytes");
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long start = dm.logger.end();
+        long rawBytes = 0;
+        long xid = tm0.begin();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < 1000) {
+                sb.append("row ").append(i).append(" of a long text column, ");
+            }
+            byte[] data = sb.toString().getBytes();
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+            rawBytes += data.length;
+        }
+        tm0.commit(xid);
+        assert dm.logger.end() - start < rawBytes / 2;
+
+        dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 20, tm0);
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            assert di != null;
+            assert Arrays.equals(di.data().toBytes(), datas.get(i));
+            di.release();
+        }
+        dm.close();
+        tm0.close();
+        disableBackgroundFlush(false);
+
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+
+    /**
+     * 提交只写了提交日志、XID 文件里还是活跃时异常退出：恢复后有提交日志的事务是已提交，
+     * 数据仍在；没有提交日志的事务被回滚
+     */
+    @Test
+    public void testCommitLogRecovery() throws Exception {
+        String path = "/tmp/TestCommitLogRecovery";
+        disableBackgroundFlush(true);
+        System.setProperty("zingdb.commit.async.delay.ms", String.valueOf(Long.MAX_VALUE));
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm0);
+
+        long committed = tm0.begin();
+        long uid1 = dm0.insert(committed, "committed".getBytes());
+        dm0.logCommit(committed);
+        tm0.commitAsync(committed);
+        long active = tm0.begin();
+        long uid2 = dm0.insert(active, "active".getBytes());
+        assert tm0.isCommitted(committed);
+
+        TransactionManager tm1 = TransactionManager.open(path);
+        assert tm1.isActive(committed);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm1);
+        assert tm1.isCommitted(committed);
+        assert tm1.isAborted(active);
+        DataItem di = dm1.read(uid1);
+        assert "committed".equals(new String(di.data().toBytes()));
+        di.release();
+        assert dm1.read(uid2) == null;
+        assert tm1.begin() > active;
+        dm1.close();
+        tm1.close();
+        System.clearProperty("zingdb.commit.async.delay.ms");
+        disableBackgroundFlush(false);
+
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
 }
@@ -1,5 +1,6 @@
 package top.tankenqi.zingdb.backend.dm;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -51,7 +52,16 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void asyncCommit(long xid) {}
+
+    @Override
+    public void logCommit(long xid) {}
+
     @Override
     public void close() {}
+
+    @Override
+    public void prefetch(Collection<Long> uids) {}
     
 }
@@ -18,7 +18,7 @@ public class MockDataItem implements DataItem {
     public static MockDataItem newMockDataItem(long uid, SubArray data) {
         MockDataItem di = new MockDataItem();
         di.data = data;
-        di.oldData = new byte[data.end - data.start];
+        di.oldData = new byte[data.length()];
         di.uid = uid;
         ReadWriteLock l = new ReentrantReadWriteLock();
         di.rLock = l.readLock();
@@ -34,12 +34,12 @@ public class MockDataItem implements DataItem {
     @Override
     public void before() {
         wLock.lock();
-        System.arraycopy(data.raw, data.start, oldData, 0, oldData.length);
+        data.get(0, oldData, 0, oldData.length);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldData, 0, data.raw, data.start, oldData.length);
+        data.put(0, oldData, 0, oldData.length);
         wLock.unlock();
     }
 
@@ -1,6 +1,17 @@
 package top.tankenqi.zingdb.backend.dm.logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -43,6 +54,283 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        assert deleteLog("/tmp/logger_test");
+    }
+
+    /**
+     * 多个线程并发写日志，组提交后每条日志都完整落盘，重新打开时校验和一致、一条不少
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        deleteLog("/tmp/logger_group_test");
+        Logger lg = Logger.create("/tmp/logger_group_test");
+        int threads = 8, perThread = 200;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    lg.log((id + ":" + i).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg.close();
+
+        Logger lg2 = Logger.open("/tmp/logger_group_test");
+        lg2.rewind();
+        Set<String> seen = new HashSet<>();
+        byte[] log;
+        while ((log = lg2.next()) != null) {
+            assert seen.add(new String(log));
+        }
+        assert seen.size() == threads * perThread;
+        lg2.close();
+
+        assert deleteLog("/tmp/logger_group_test");
+    }
+
+    /**
+     * 小段下写满多个段：重新打开后按顺序读回全部日志；
+     * 最后一段的最后一条日志被写坏时作为坏尾截掉，之后追加的日志接在它前面一条之后
+     */
+    @Test
+    public void testSegmentsAndBadTail() throws Exception {
+        deleteLog("/tmp/logger_seg_test");
+        File dir = new File("/tmp/logger_seg_test.log");
+        assert dir.mkdirs();
+        LoggerImpl lg = LoggerImpl.create(dir, 4096);
+        lg.start();
+        int n = 300;
+        long lastLsn = 0;
+        for (int i = 0; i < n; i++) {
+            lastLsn = lg.log(("log-" + i).getBytes());
+        }
+        lg.close();
+        assert dir.listFiles().length > 1;
+
+        // 把最后一条日志的最后一个字节写坏（段文件是预分配的，不能按文件长度找）
+        File last = new File(dir, LogSegment.fileName(lastLsn / 4096));
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.seek(lastLsn % 4096 + 16 + ("log-" + (n - 1)).length() - 1);
+            raf.write('X');
+        }
+
+        Logger lg2 = Logger.open("/tmp/logger_seg_test");
+        for (int i = 0; i < n - 1; i++) {
+            assert ("log-" + i).equals(new String(lg2.next()));
+        }
+        assert lg2.next() == null;
+        lg2.log("again".getBytes());
+        lg2.close();
+
+        Logger lg3 = Logger.open("/tmp/logger_seg_test");
+        for (int i = 0; i < n - 1; i++) {
+            assert ("log-" + i).equals(new String(lg3.next()));
+        }
+        assert "again".equals(new String(lg3.next()));
+        assert lg3.next() == null;
+        lg3.close();
+
+        assert deleteLog("/tmp/logger_seg_test");
+    }
+
+    /**
+     * 旧版单文件日志在打开时转换为段文件日志，内容不变
+     */
+    @Test
+    public void testUpgradeLegacyLog() throws Exception {
+        deleteLog("/tmp/logger_legacy_test");
+        int xChecksum = 0;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (String s : new String[] { "aaa", "bbb", "ccc" }) {
+            byte[] data = s.getBytes();
+            int checksum = 0;
+            for (byte b : data) {
+                checksum = checksum * 13331 + b;
+            }
+            byte[] log = ByteBuffer.allocate(8 + data.length).putInt(data.length).putInt(checksum).put(data).array();
+            for (byte b : log) {
+                xChecksum = xChecksum * 13331 + b;
+            }
+            body.write(log);
+        }
+        try (FileOutputStream out = new FileOutputStream("/tmp/logger_legacy_test.log")) {
+            out.write(ByteBuffer.allocate(4).putInt(xChecksum).array());
+            out.write(body.toByteArray());
+        }
+
+        Logger lg = Logger.open("/tmp/logger_legacy_test");
+        assert new File("/tmp/logger_legacy_test.log").isDirectory();
+        assert !new File("/tmp/logger_legacy_test.log.v1").exists();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert "ccc".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert deleteLog("/tmp/logger_legacy_test");
+    }
+
+    /**
+     * 检查点之前的段被删除（保留窗口内的除外），重新打开后从检查点开始读；配置归档目录时移动到归档目录
+     */
+    @Test
+    public void testCheckpointReleasesSegments() throws Exception {
+        deleteLog("/tmp/logger_ckpt_test");
+        File archive = new File("/tmp/logger_ckpt_archive");
+        System.setProperty("zingdb.log.retain.segments", "1");
+        System.setProperty("zingdb.log.archive.dir", archive.getPath());
+        try {
+            File dir = new File("/tmp/logger_ckpt_test.log");
+            assert dir.mkdirs();
+            LoggerImpl lg = LoggerImpl.create(dir, 4096);
+            lg.start();
+            for (int i = 0; i < 1000; i++) {
+                lg.log(("old-" + i).getBytes());
+            }
+            long ckpt = lg.end();
+            for (int i = 0; i < 10; i++) {
+                lg.log(("new-" + i).getBytes());
+            }
+            lg.checkpoint(ckpt);
+            long ckptSeg = ckpt / 4096;
+            assert !new File(dir, LogSegment.fileName(ckptSeg - 2)).exists();
+            assert new File(archive, LogSegment.fileName(ckptSeg - 2)).exists();
+            assert new File(dir, LogSegment.fileName(ckptSeg - 1)).exists();
+            lg.close();
+
+            Logger lg2 = Logger.open("/tmp/logger_ckpt_test");
+            lg2.rewind();
+            for (int i = 0; i < 10; i++) {
+                assert ("new-" + i).equals(new String(lg2.next()));
+            }
+            assert lg2.next() == null;
+            lg2.close();
+        } finally {
+            System.clearProperty("zingdb.log.retain.segments");
+            System.clearProperty("zingdb.log.archive.dir");
+        }
+
+        assert deleteLog("/tmp/logger_ckpt_test");
+        for (File f : archive.listFiles()) {
+            f.delete();
+        }
+        archive.delete();
+    }
+
+    /**
+     * 顺序读取走预读缓冲：小日志与超过预读大小的日志交替、写完后接着读，内容都与写入的一致
+     */
+    @Test
+    public void testBufferedRead() throws Exception {
+        deleteLog("/tmp/logger_read_test");
+        Logger lg = Logger.create("/tmp/logger_read_test");
+        List<byte[]> logs = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = new byte[i % 500 == 7 ? (3 << 20) / 2 : 1 + random.nextInt(300)];
+            random.nextBytes(data);
+            data[0] = 0;
+            logs.add(data);
+            lg.log(data);
+        }
+        lg.rewind();
+        for (byte[] data : logs) {
+            assert Arrays.equals(data, lg.next());
+        }
+        assert lg.next() == null;
+        // 读到结尾后追加的日志也能接着读到
+        lg.log("tail".getBytes());
+        assert "tail".equals(new String(lg.next()));
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_read_test");
+        lg.rewind();
+        for (byte[] data : logs) {
+            assert Arrays.equals(data, lg.next());
+        }
+        assert "tail".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+        assert deleteLog("/tmp/logger_read_test");
+    }
+
+    /**
+     * 段文件预分配为段大小；坏尾清 0 后，在坏尾处追加的日志不会接上坏尾之后残留的有效日志；
+     * 检查点释放的段成为备用段，切段时被改名复用
+     */
+    @Test
+    public void testPreallocatedSegments() throws Exception {
+        deleteLog("/tmp/logger_prealloc_test");
+        File dir = new File("/tmp/logger_prealloc_test.log");
+        assert dir.mkdirs();
+        LoggerImpl lg = LoggerImpl.create(dir, 4096);
+        lg.start();
+        lg.log("log-a".getBytes());
+        long b = lg.log("log-b".getBytes());
+        lg.log("log-c".getBytes());
+        lg.close();
+        assert new File(dir, LogSegment.fileName(0)).length() == 4096;
+
+        // 写坏 log-b，log-c 仍是一条完整有效的日志
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, LogSegment.fileName(0)), "rw")) {
+            raf.seek(b + 16);
+            raf.write('X');
+        }
+        Logger lg2 = Logger.open("/tmp/logger_prealloc_test");
+        assert "log-a".equals(new String(lg2.next()));
+        assert lg2.next() == null;
+        assert lg2.log("log-d".getBytes()) == b;
+        lg2.close();
+
+        lg = LoggerImpl.open(dir);
+        lg.start();
+        assert "log-a".equals(new String(lg.next()));
+        assert "log-d".equals(new String(lg.next()));
+        assert lg.next() == null;
+
+        for (int i = 0; i < 1000; i++) {
+            lg.log(("old-" + i).getBytes());
+        }
+        lg.checkpoint(lg.end());
+        File spare = new File(dir, LogSegment.SPARE_FILE);
+        assert spare.exists();
+        long tail = lg.end() / 4096;
+        while (lg.end() / 4096 == tail) {
+            lg.log("new".getBytes());
+        }
+        assert !spare.exists();
+        for (File f : dir.listFiles()) {
+            assert LogSegment.parseNo(f.getName()) < 0 || f.length() == 4096;
+        }
+        lg.close();
+
+        Logger lg3 = Logger.open("/tmp/logger_prealloc_test");
+        lg3.rewind();
+        int count = 0;
+        byte[] log;
+        while ((log = lg3.next()) != null) {
+            assert "new".equals(new String(log));
+            count++;
+        }
+        assert count > 0;
+        lg3.close();
+        assert deleteLog("/tmp/logger_prealloc_test");
+    }
+
+    /**
+     * 删除 path 对应的日志目录及其中的段文件，目录不存在时返回 false
+     */
+    public static boolean deleteLog(String path) {
+        File dir = new File(path + ".log");
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        return dir.delete();
     }
 }
@@ -1,18 +1,19 @@
 package top.tankenqi.zingdb.backend.dm.page;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class MockPage implements Page {
 
     private int pgno;
-    private byte[] data;
+    private ByteBuffer data;
     private Lock lock = new ReentrantLock();
 
     public static MockPage newMockPage(int pgno, byte[] data) {
         MockPage mp = new MockPage();
         mp.pgno = pgno;
-        mp.data = data;
+        mp.data = ByteBuffer.wrap(data);
         return mp;
     }
 
@@ -37,13 +38,21 @@ public class MockPage implements Page {
         return false;
     }
 
+    @Override
+    public long getRecLsn() {
+        return 0;
+    }
+
+    @Override
+    public void markRecLsn(long lsn) {}
+
     @Override
     public int getPageNumber() {
         return pgno;
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getBuffer() {
         return data;
     }
     
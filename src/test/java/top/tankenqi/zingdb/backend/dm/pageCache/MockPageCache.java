@@ -54,5 +54,31 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void prefetch(int fromPgno, int count) {}
+
+    @Override
+    public void scanPages(int fromPgno, int toPgno, PageVisitor visitor) {
+        for (int pgno = fromPgno; pgno <= Math.min(toPgno, noPages.get()); pgno++) {
+            visitor.visit(pgno, cache.get(pgno).getBuffer());
+        }
+    }
+
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public int flushDirtyPages(long lsn) {
+        return 0;
+    }
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void setLogFence(Runnable fence) {}
     
 }
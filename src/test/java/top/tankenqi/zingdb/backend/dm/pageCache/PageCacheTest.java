@@ -1,8 +1,9 @@
 package top.tankenqi.zingdb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -41,7 +42,7 @@ public class PageCacheTest {
         pc = PageCache.open("/tmp/pcacher_simple_test0", PageCache.PAGE_SIZE * 50);
         for (int i = 1; i <= 100; i++) {
             Page pg = pc.getPage(i);
-            assert pg.getData()[0] == (byte) i - 1;
+            assert pg.getBuffer().get(0) == (byte) i - 1;
             pg.release();
         }
         pc.close();
@@ -49,6 +50,332 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    /**
+     * 定位读写不再串行化：多个线程并发未命中不同页，读到的内容都正确
+     */
+    @Test
+    public void testConcurrentPositionalReads() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_pread_test", PageCache.PAGE_SIZE * 16);
+        int pages = 200;
+        for (int i = 0; i < pages; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            tmp[PageCache.PAGE_SIZE - 1] = (byte) i;
+            pc.newPage(tmp);
+        }
+        int threads = 8;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        AtomicInteger bad = new AtomicInteger(0);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        int pgno = Math.abs(random.nextInt()) % pages + 1;
+                        Page pg = pc.getPage(pgno);
+                        ByteBuffer data = pg.getBuffer();
+                        if (data.get(0) != (byte) (pgno - 1) || data.get(PageCache.PAGE_SIZE - 1) != (byte) (pgno - 1)) {
+                            bad.incrementAndGet();
+                        }
+                        pg.release();
+                    }
+                } catch (Exception e) {
+                    bad.incrementAndGet();
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert bad.get() == 0;
+        pc.close();
+        assert new File("/tmp/pcacher_pread_test.db").delete();
+    }
+
+    /**
+     * 内存映射模式：跨段写入、关闭后文件截回实际页数、重开后内容一致
+     */
+    @Test
+    public void testMappedPageCache() throws Exception {
+        int pages = MappedPageCacheImpl.SEGMENT_PAGES + 10;
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, true);
+        for (int i = 0; i < pages; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            tmp[PageCache.PAGE_SIZE - 1] = (byte) (i >> 8);
+            pc.newPage(tmp);
+        }
+        Page pg = pc.getPage(3);
+        pg.getBuffer().put(1, (byte) 42);
+        pg.setDirty(true);
+        pg.release();
+        pc.close();
+
+        File f = new File("/tmp/pcacher_mmap_test.db");
+        assert f.length() == (long) pages * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, true);
+        assert pc.getPageNumber() == pages;
+        for (int i = 1; i <= pages; i++) {
+            pg = pc.getPage(i);
+            assert pg.getBuffer().get(0) == (byte) (i - 1);
+            assert pg.getBuffer().get(PageCache.PAGE_SIZE - 1) == (byte) ((i - 1) >> 8);
+            pg.release();
+        }
+        pg = pc.getPage(3);
+        assert pg.getBuffer().get(1) == 42;
+        pg.release();
+        pc.close();
+        assert f.delete();
+    }
+
+    /**
+     * 缓存满时淘汰未被引用的页，热点页在一次性扫描后仍然常驻；
+     * 全部被钉住时，未命中会等待其他线程释放而不是直接失败
+     */
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10);
+        for (int i = 0; i < 40; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            pc.newPage(tmp);
+        }
+        // 页 1 多次命中，成为热点
+        for (int i = 0; i < 4; i++) {
+            pc.getPage(1).release();
+        }
+        // 一次性扫描其余页
+        for (int i = 2; i <= 40; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getBuffer().get(0) == (byte) (i - 1);
+            pg.release();
+        }
+        assert pc.getEvictions() > 0;
+        long misses = pc.getMisses();
+        pc.getPage(1).release();
+        assert pc.getMisses() == misses;
+
+        // 钉住全部 10 个位置，另一个线程的未命中需要等待释放
+        Page[] pinned = new Page[10];
+        for (int i = 0; i < 10; i++) {
+            pinned[i] = pc.getPage(i + 11);
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                pc.getPage(30).release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            done.countDown();
+        });
+        t.start();
+        Thread.sleep(50);
+        assert done.getCount() == 1;
+        pinned[0].release();
+        done.await();
+        for (int i = 1; i < 10; i++) {
+            pinned[i].release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_evict_test.db").delete();
+    }
+
+    /**
+     * 预读：一次分散读入连续的未缓存页，之后访问这些页全部命中；单次预读不超过容量的 1/4
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 40);
+        for (int i = 0; i < 60; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 40);
+        pc.getPage(3).release();
+        assert pc.prefetchPages(1, 60) == 9; // 上限 10 页，第 3 页已在缓存中
+        long misses = pc.getMisses();
+        for (int i = 1; i <= 10; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getBuffer().get(0) == (byte) (i - 1);
+            pg.release();
+        }
+        assert pc.getMisses() == misses;
+        assert pc.prefetchPages(55, 20) == 6; // 越过文件末尾的部分被忽略
+        pc.close();
+        assert new File("/tmp/pcacher_prefetch_test.db").delete();
+    }
+
+    /**
+     * 预读读文件期间，访问同一页的线程等待预读结果而不是自己载入：
+     * 否则它载入、修改并写回之后，预读会把更早读到的旧内容放进缓存
+     */
+    @Test
+    public void testPrefetchPlaceholder() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_prefetch_race", PageCache.PAGE_SIZE * 40);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        pc.close();
+
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_prefetch_race.db", "rw");
+        PageCacheImpl slow = new PageCacheImpl(raf, raf.getChannel(), 40) {
+            @Override
+            protected void readRun(int fromPgno, ByteBuffer[] frames) {
+                super.readRun(fromPgno, frames);
+                reading.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        };
+        Thread prefetcher = new Thread(() -> {
+            try {
+                slow.prefetchPages(1, 1);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        });
+        prefetcher.start();
+        reading.await();
+
+        Page[] got = new Page[1];
+        Thread reader = new Thread(() -> {
+            try {
+                got[0] = slow.getPage(1);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        reader.start();
+        while (reader.getState() != Thread.State.WAITING) {
+            assert reader.isAlive();
+            Thread.sleep(1);
+        }
+        gate.countDown();
+        reader.join();
+        prefetcher.join();
+
+        Page pg = slow.getPage(1);
+        assert pg == got[0];
+        pg.release();
+        got[0].release();
+        slow.close();
+        assert new File("/tmp/pcacher_prefetch_race.db").delete();
+    }
+
+    /**
+     * 直接内存页帧：页帧来自 FrameArena，淘汰后回收复用，复用的页帧读到的仍是正确内容
+     */
+    @Test
+    public void testOffHeapFrames() throws Exception {
+        System.setProperty("zingdb.pc.offheap", "true");
+        PageCacheImpl pc;
+        try {
+            pc = PageCache.create("/tmp/pcacher_offheap_test", PageCache.PAGE_SIZE * 10);
+        } finally {
+            System.clearProperty("zingdb.pc.offheap");
+        }
+        for (int i = 0; i < 40; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            pc.newPage(tmp);
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 40; i++) {
+                Page pg = pc.getPage(i);
+                assert pg.getBuffer().isDirect();
+                assert pg.getBuffer().get(0) == (byte) (i - 1 + round);
+                pg.getBuffer().put(0, (byte) (i + round));
+                pg.setDirty(true);
+                pg.release();
+            }
+        }
+        assert pc.getEvictions() > 0;
+        pc.truncateByBgno(5);
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_offheap_test", PageCache.PAGE_SIZE * 10);
+        for (int i = 1; i <= 5; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getBuffer().get(0) == (byte) (i + 1);
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_offheap_test.db").delete();
+    }
+
+    /**
+     * 后台批量刷盘：脏页被写回文件后清除脏标记，文件内容与内存一致，脏页计数归零
+     */
+    @Test
+    public void testFlushDirtyPages() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_flush_test", PageCache.PAGE_SIZE * 50);
+        for (int i = 0; i < 20; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        for (int i = 1; i <= 20; i++) {
+            Page pg = pc.getPage(i);
+            pg.getBuffer().put(0, (byte) (i * 3));
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.flushDirtyPages();
+
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_flush_test.db", "r")) {
+            for (int i = 1; i <= 20; i++) {
+                raf.seek((long) (i - 1) * PageCache.PAGE_SIZE);
+                assert raf.read() == (i * 3 & 0xff);
+                Page pg = pc.getPage(i);
+                assert !pg.isDirty();
+                pg.release();
+            }
+        }
+        assert pc.dirtyPageCount() == 0;
+        // 脏页计数只在干净与脏之间切换时变化
+        Page pg = pc.getPage(1);
+        pg.setDirty(true);
+        pg.setDirty(true);
+        assert pc.dirtyPageCount() == 1;
+        pg.setDirty(false);
+        assert pc.dirtyPageCount() == 0;
+        pg.release();
+        pc.close();
+        assert new File("/tmp/pcacher_flush_test.db").delete();
+    }
+
+    /**
+     * 淘汰时写回但还没 fsync 的页仍在脏页表中，recLSN 保持写回前的值，sync 之后才去掉
+     */
+    @Test
+    public void testUnsyncedPagesInDirtyPageTable() throws Exception {
+        System.setProperty("zingdb.pc.flush.interval.ms", String.valueOf(Long.MAX_VALUE));
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_unsynced_test", PageCache.PAGE_SIZE * 10);
+        System.clearProperty("zingdb.pc.flush.interval.ms");
+        for (int i = 0; i < 30; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        Page pg = pc.getPage(1);
+        pg.markRecLsn(77);
+        pg.getBuffer().put(0, (byte) 1);
+        pg.setDirty(true);
+        pg.release();
+        for (int i = 2; i <= 30; i++) {
+            pc.getPage(i).release();
+        }
+        assert pc.getEvictions() > 0;
+        assert pc.dirtyPageTable().get(1) == 77L;
+        pc.sync();
+        assert !pc.dirtyPageTable().containsKey(1);
+        pc.close();
+        assert new File("/tmp/pcacher_unsynced_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -153,7 +480,7 @@ public class PageCacheTest {
                     Panic.panic(e);
                 }
                 pg.lock();
-                assert Arrays.equals(mpg.getData(), pg.getData());
+                assert mpg.getBuffer().equals(pg.getBuffer());
                 pg.unlock();
                 pg.release();
             } else {
@@ -178,11 +505,11 @@ public class PageCacheTest {
                 pg.lock();
                 mpg.setDirty(true);
                 for (int j = 0; j < PageCache.PAGE_SIZE; j++) {
-                    mpg.getData()[j] = newData[j];
+                    mpg.getBuffer().put(j, newData[j]);
                 }
                 pg.setDirty(true);
                 for (int j = 0; j < PageCache.PAGE_SIZE; j++) {
-                    pg.getData()[j] = newData[j];
+                    pg.getBuffer().put(j, newData[j]);
                 }
                 pg.unlock();
                 pg.release();
@@ -1,5 +1,8 @@
 package top.tankenqi.zingdb.backend.dm.pageIndex;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.junit.Test;
 
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
@@ -23,4 +26,39 @@ public class PageIndexTest {
             }
         }
     }
+
+    /**
+     * 多线程反复认领、放回：同一页同一时刻只会被一个线程拿到，放回的页其他线程也能取到
+     */
+    @Test
+    public void testConcurrentClaim() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        int pages = 64;
+        for (int i = 0; i < pages; i++) {
+            pIndex.add(i, PageCache.PAGE_SIZE / 2);
+        }
+        AtomicIntegerArray owners = new AtomicIntegerArray(pages);
+        int threads = 8;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t + 1;
+            new Thread(() -> {
+                for (int k = 0; k < 10000; k++) {
+                    PageInfo pi = pIndex.select(100);
+                    if (pi == null) {
+                        continue;
+                    }
+                    assert owners.compareAndSet(pi.pgno, 0, id);
+                    assert owners.compareAndSet(pi.pgno, id, 0);
+                    pIndex.add(pi.pgno, pi.freeSpace);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        for (int i = 0; i < pages; i++) {
+            assert pIndex.select(100) != null;
+        }
+        assert pIndex.select(100) == null;
+    }
 }
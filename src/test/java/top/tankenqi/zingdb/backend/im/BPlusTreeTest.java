@@ -6,6 +6,7 @@ import java.util.List;
 import org.junit.Test;
 
 import top.tankenqi.zingdb.backend.dm.DataManager;
+import top.tankenqi.zingdb.backend.dm.logger.LoggerTest;
 import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
 import top.tankenqi.zingdb.backend.tm.MockTransactionManager;
 import top.tankenqi.zingdb.backend.tm.TransactionManager;
@@ -31,6 +32,6 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        assert LoggerTest.deleteLog("/tmp/TestTreeSingle");
     }
 }
@@ -53,7 +53,12 @@ public class EndToEndSqlTest {
     public void tearDown() {
         File d = new File(dir);
         if (d.isDirectory()) {
-            for (File f : d.listFiles()) f.delete();
+            for (File f : d.listFiles()) {
+                if (f.isDirectory()) { // 日志目录
+                    for (File seg : f.listFiles()) seg.delete();
+                }
+                f.delete();
+            }
             d.delete();
         }
     }
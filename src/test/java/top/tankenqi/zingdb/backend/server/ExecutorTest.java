@@ -6,9 +6,11 @@ import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 
 import top.tankenqi.zingdb.backend.dm.DataManager;
+import top.tankenqi.zingdb.backend.dm.logger.LoggerTest;
 import top.tankenqi.zingdb.backend.tbm.TableManager;
 import top.tankenqi.zingdb.backend.tm.TransactionManager;
 import top.tankenqi.zingdb.backend.vm.VersionManager;
+import top.tankenqi.zingdb.transport.Package;
 
 public class ExecutorTest {
     String path = "/tmp/zingdb";
@@ -64,10 +66,27 @@ public class ExecutorTest {
         cleanup();
     }
 
+    @Test
+    public void testAsyncCommit() throws Exception {
+        Executor exe = testCreate();
+        assert exe.execute("set synchronous_commit = off").isOk();
+        assert exe.execute("set synchronous_commit = maybe").isError();
+        assert exe.execute("set foo = 1").isError();
+        testInsert(exe, 100, 1);
+        exe.execute("begin");
+        testInsert(exe, 100, 1);
+        exe.execute("commit");
+        Package rs = exe.execute("select * from test_table");
+        assert rs.isResultSet();
+        assert rs.getResultSet().rowCount() == 200;
+        cleanup();
+    }
+
     private void cleanup() {
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        LoggerTest.deleteLog(path);
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 }
@@ -13,6 +13,15 @@ public class MockTransactionManager implements TransactionManager {
     @Override
     public void abort(long xid) {}
 
+    @Override
+    public void commitAsync(long xid) {}
+
+    @Override
+    public void flushCommits(Runnable logFence) {}
+
+    @Override
+    public void freeze() {}
+
     @Override
     public boolean isActive(long xid) {
         return false;
@@ -5,6 +5,8 @@ import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,6 +45,237 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    /**
+     * 状态查询只读内存表：重新打开后从 XID 文件载入；异步提交在 flushCommits 之前只在内存中，
+     * 此时另一个实例从文件打开（相当于崩溃后重启）看到的仍是活跃
+     */
+    @Test
+    public void testStatusTableReload() {
+        new File("/tmp/tranmger_reload_test.xid").delete();
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reload_test");
+        int n = 100;
+        for (int i = 1; i <= n; i++) {
+            long xid = tm.begin();
+            if (i % 3 == 1) {
+                tm.commit(xid);
+            } else if (i % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        // commit 写入的状态没有落盘，也要由 flushCommits 在日志屏障之后 fsync
+        boolean[] fenced = { false };
+        tm.flushCommits(() -> fenced[0] = true);
+        assert fenced[0];
+        long async = tm.begin();
+        tm.commitAsync(async);
+        assert tm.isCommitted(async);
+
+        TransactionManager crashed = TransactionManager.open("/tmp/tranmger_reload_test");
+        assert crashed.isActive(async);
+        crashed.close();
+
+        tm.flushCommits(() -> {});
+        tm.close();
+        tm = TransactionManager.open("/tmp/tranmger_reload_test");
+        for (int i = 1; i <= n; i++) {
+            assert tm.isCommitted(i) == (i % 3 == 1);
+            assert tm.isAborted(i) == (i % 3 == 2);
+            assert tm.isActive(i) == (i % 3 == 0);
+        }
+        assert tm.isCommitted(async);
+        tm.close();
+        assert new File("/tmp/tranmger_reload_test.xid").delete();
+    }
+
+    /**
+     * 冻结线停在最早的活跃事务上，之前的状态压缩进文件头，文件变短，查询结果不变；
+     * 重新打开后按冻结后的格式读取，上次运行遗留的活跃事务在冻结时按回滚处理
+     */
+    @Test
+    public void testFreeze() {
+        String path = "/tmp/tranmger_freeze_test";
+        new File(path + ".xid").delete();
+        System.setProperty("zingdb.xid.freeze.min", "10");
+        System.setProperty("zingdb.xid.block", "16");
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            long oldest = 0;
+            for (int i = 1; i <= 100; i++) {
+                long xid = tm.begin();
+                if (i == 95) {
+                    oldest = xid;
+                } else if (i % 10 == 3) {
+                    tm.abort(xid);
+                } else if (i != 99) {
+                    tm.commit(xid);
+                }
+            }
+            long before = new File(path + ".xid").length();
+            // 与检查点一样，先把提交状态落盘，冻结线才能越过它们
+            tm.flushCommits(() -> {});
+            tm.freeze();
+            assert new File(path + ".xid").length() < before;
+            tm.commit(oldest);
+            for (int i = 0; i < 20; i++) {
+                tm.commit(tm.begin());
+            }
+            assertFrozenStatuses(tm, oldest);
+            tm.close();
+
+            tm = TransactionManager.open(path);
+            assertFrozenStatuses(tm, oldest);
+            assert tm.isActive(99);
+            tm.freeze();
+            assert tm.isAborted(99);
+            assertFrozenStatuses(tm, oldest);
+            // 全部冻结：只剩文件头与 11 个回滚事务
+            assert new File(path + ".xid").length() == 20 + 8 * 11;
+            tm.close();
+
+            tm = TransactionManager.open(path);
+            assert tm.isAborted(99);
+            assertFrozenStatuses(tm, oldest);
+            tm.close();
+        } finally {
+            System.clearProperty("zingdb.xid.freeze.min");
+            System.clearProperty("zingdb.xid.block");
+        }
+        assert new File(path + ".xid").delete();
+    }
+
+    /**
+     * 冻结与 begin / 提交 / 回滚并发：冻结不持有 counterLock，期间分配、结束的事务状态都不会丢，
+     * 重新打开后状态一致
+     */
+    @Test
+    public void testFreezeConcurrent() throws Exception {
+        String path = "/tmp/tranmger_freeze_concurrent";
+        new File(path + ".xid").delete();
+        System.setProperty("zingdb.xid.freeze.min", "1");
+        System.setProperty("zingdb.xid.block", "16");
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            int n = 3000;
+            AtomicBoolean done = new AtomicBoolean();
+            // 不能用 interrupt 停止：中断正在读写的线程会关闭 FileChannel
+            Thread freezer = new Thread(() -> {
+                while (!done.get()) {
+                    tm.flushCommits(() -> {});
+                    tm.freeze();
+                }
+            });
+            freezer.start();
+            for (int i = 0; i < n; i++) {
+                long xid = tm.begin();
+                if (xid % 7 == 0) {
+                    tm.abort(xid);
+                } else {
+                    tm.commit(xid);
+                }
+            }
+            done.set(true);
+            freezer.join();
+            tm.flushCommits(() -> {});
+            tm.freeze();
+            for (long xid = 1; xid <= n; xid++) {
+                assert tm.isAborted(xid) == (xid % 7 == 0);
+                assert tm.isCommitted(xid) == (xid % 7 != 0);
+            }
+            tm.close();
+            // 全部冻结：只剩文件头与回滚事务列表
+            assert new File(path + ".xid").length() == 20 + 8 * (n / 7);
+
+            TransactionManager reopened = TransactionManager.open(path);
+            for (long xid = 1; xid <= n; xid++) {
+                assert reopened.isAborted(xid) == (xid % 7 == 0);
+                assert reopened.isCommitted(xid) == (xid % 7 != 0);
+            }
+            assert reopened.begin() == n + 1;
+            reopened.close();
+        } finally {
+            System.clearProperty("zingdb.xid.freeze.min");
+            System.clearProperty("zingdb.xid.block");
+        }
+        assert new File(path + ".xid").delete();
+    }
+
+    /**
+     * 状态查询与冻结并发：冻结先发布冻结信息再截断状态表，查询读到被截断的页时要按新的冻结信息重查，
+     * 已结束的事务不能被报告为活跃。状态表每页只有 32 个 XID，冻结几乎每次都会截断
+     */
+    @Test
+    public void testCheckXIDDuringFreeze() throws Exception {
+        String path = "/tmp/tranmger_freeze_check";
+        new File(path + ".xid").delete();
+        System.setProperty("zingdb.xid.freeze.min", "1");
+        System.setProperty("zingdb.xid.block", "16");
+        System.setProperty("zingdb.xid.table.page.shift", "0");
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            int n = 20000;
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicBoolean wrong = new AtomicBoolean();
+            AtomicLong ended = new AtomicLong(); // 不超过它的事务都已结束
+            List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    tm.flushCommits(() -> {});
+                    tm.freeze();
+                }
+            }));
+            for (int i = 0; i < 2; i++) {
+                threads.add(new Thread(() -> {
+                    Random r = new Random();
+                    while (!done.get()) {
+                        long e = ended.get();
+                        if (e == 0) {
+                            continue;
+                        }
+                        // 只查冻结线附近的 XID，它们所在的页正在被截断
+                        long xid = e - r.nextInt((int) Math.min(e, 256));
+                        if (tm.isActive(xid) || tm.isAborted(xid) != (xid % 7 == 0)) {
+                            wrong.set(true);
+                        }
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (int i = 0; i < n; i++) {
+                long xid = tm.begin();
+                if (xid % 7 == 0) {
+                    tm.abort(xid);
+                } else {
+                    tm.commit(xid);
+                }
+                ended.set(xid);
+            }
+            done.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+            assert !wrong.get();
+            tm.close();
+        } finally {
+            System.clearProperty("zingdb.xid.freeze.min");
+            System.clearProperty("zingdb.xid.block");
+            System.clearProperty("zingdb.xid.table.page.shift");
+        }
+        assert new File(path + ".xid").delete();
+    }
+
+    private static void assertFrozenStatuses(TransactionManager tm, long oldest) {
+        for (long xid = 1; xid <= 120; xid++) {
+            boolean aborted = xid <= 100 && xid % 10 == 3;
+            if (xid == 99) {
+                continue;
+            }
+            assert tm.isAborted(xid) == aborted;
+            assert tm.isCommitted(xid) == !aborted;
+            assert !tm.isActive(xid);
+        }
+        assert tm.isCommitted(oldest);
+    }
+
     private void worker() {
         boolean inTrans = false; // 是否在事务中
         long transXID = 0; // 当前事务的XID
@@ -0,0 +1,94 @@
+package top.tankenqi.zingdb.backend.vm;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import top.tankenqi.zingdb.backend.dm.DataManager;
+import top.tankenqi.zingdb.backend.dm.logger.LoggerTest;
+import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.tm.MockTransactionManager;
+import top.tankenqi.zingdb.backend.tm.TransactionManager;
+
+public class EntryTest {
+
+    /**
+     * 记录状态查询次数的 TransactionManager，状态从 tm 读取
+     */
+    private static class CountingTransactionManager extends MockTransactionManager {
+        final TransactionManager tm;
+        final AtomicInteger lookups = new AtomicInteger();
+
+        CountingTransactionManager(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        @Override
+        public boolean isCommitted(long xid) {
+            lookups.incrementAndGet();
+            return tm.isCommitted(xid);
+        }
+
+        @Override
+        public boolean isAborted(long xid) {
+            lookups.incrementAndGet();
+            return tm.isAborted(xid);
+        }
+    }
+
+    /**
+     * 事务结束后第一次判断把结果写进提示位，之后不再查询事务状态；
+     * 重新设置 XMAX 后旧的提示位失效
+     */
+    @Test
+    public void testHintBits() throws Exception {
+        String path = "/tmp/TestEntryHintBits";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long x1 = vm.begin(0);
+        long uid = vm.insert(x1, "row".getBytes());
+        vm.commit(x1);
+        long x2 = vm.begin(0);
+        assert vm.delete(x2, uid);
+        vm.abort(x2);
+
+        CountingTransactionManager ctm = new CountingTransactionManager(tm);
+        Entry e = Entry.loadEntry(vm, uid);
+        assert e.getXmin() == x1 && e.getXmax() == x2;
+        assert e.isXminCommitted(ctm, x1);
+        assert !e.isXmaxCommitted(ctm, x2);
+        // XMIN 的提示位在 x2 删除时的可见性判断中已经写入，只有 XMAX 查了状态
+        int lookups = ctm.lookups.get();
+        assert lookups == 2;
+        assert e.isXminCommitted(ctm, x1);
+        assert !e.isXmaxCommitted(ctm, x2);
+        assert ctm.lookups.get() == lookups;
+        assert e.getXmin() == x1 && e.getXmax() == x2;
+        e.release();
+
+        long x3 = vm.begin(0);
+        assert vm.delete(x3, uid);
+        e = Entry.loadEntry(vm, uid);
+        assert e.getXmax() == x3;
+        assert !e.isXmaxCommitted(ctm, x3);
+        assert ctm.lookups.get() == lookups + 2;
+        assert e.isXminCommitted(ctm, x1);
+        assert ctm.lookups.get() == lookups + 2;
+        e.release();
+        vm.commit(x3);
+
+        long x4 = vm.begin(0);
+        assert vm.read(x4, uid) == null;
+        vm.commit(x4);
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+}
@@ -0,0 +1,57 @@
+package top.tankenqi.zingdb.backend.vm;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import top.tankenqi.zingdb.backend.dm.DataManager;
+import top.tankenqi.zingdb.backend.dm.logger.LoggerTest;
+import top.tankenqi.zingdb.backend.dm.pageCache.PageCache;
+import top.tankenqi.zingdb.backend.tm.TransactionManager;
+
+public class VersionManagerTest {
+
+    /**
+     * 可重复读事务看不到开始时仍活跃的事务的修改，即使它们之后提交；
+     * 已结束的事务不再出现在之后开始的事务的快照中
+     */
+    @Test
+    public void testRepeatableReadSnapshot() throws Exception {
+        String path = "/tmp/TestVMSnapshot";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long x1 = vm.begin(0);
+        long x2 = vm.begin(0);
+        long x3 = vm.begin(0);
+        long uid2 = vm.insert(x2, "x2".getBytes());
+        long uid3 = vm.insert(x3, "x3".getBytes());
+        vm.commit(x1);
+
+        long r1 = vm.begin(1);
+        Transaction t = ((VersionManagerImpl) vm).activeTransaction.get(r1);
+        assert t.isInSnapshot(x2) && t.isInSnapshot(x3);
+        assert !t.isInSnapshot(x1) && !t.isInSnapshot(r1);
+
+        vm.commit(x2);
+        vm.commit(x3);
+        assert vm.read(r1, uid2) == null;
+        assert vm.read(r1, uid3) == null;
+
+        long r2 = vm.begin(1);
+        t = ((VersionManagerImpl) vm).activeTransaction.get(r2);
+        assert t.snapshot.length == 1 && t.snapshot[0] == r1;
+        assert new String(vm.read(r2, uid2)).equals("x2");
+        assert new String(vm.read(r2, uid3)).equals("x3");
+        vm.commit(r1);
+        vm.commit(r2);
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        LoggerTest.deleteLog(path);
+        new File(path + ".fsm").delete();
+        new File(path + ".xid").delete();
+    }
+}